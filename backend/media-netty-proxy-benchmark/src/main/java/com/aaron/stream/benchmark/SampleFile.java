@@ -0,0 +1,64 @@
+package com.aaron.stream.benchmark;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Synthetic camera recording, H.264 + AAC in FLV like a Hikvision main stream, so no camera is needed
+ */
+public class SampleFile {
+    public static final int WIDTH = 1280;
+    public static final int HEIGHT = 720;
+    public static final int FRAME_RATE = 25;
+    public static final int GOP_SIZE = 50;
+    private static final int SAMPLE_RATE = 44100;
+
+    private SampleFile() {
+    }
+
+    /**
+     * Encode a moving test pattern with a tone
+     *
+     * @param seconds duration
+     * @return temporary file, deleted on exit
+     */
+    public static File create(int seconds) throws IOException {
+        File file = File.createTempFile("proxy-benchmark-", ".flv");
+        file.deleteOnExit();
+
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(file, WIDTH, HEIGHT, 1)) {
+            recorder.setFormat("flv");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+            recorder.setFrameRate(FRAME_RATE);
+            recorder.setGopSize(GOP_SIZE);
+            recorder.setVideoBitrate(4_000_000);
+            recorder.setVideoOption("preset", "ultrafast");
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+            recorder.setSampleRate(SAMPLE_RATE);
+            recorder.setAudioBitrate(64000);
+            recorder.start();
+
+            Frame frame = new Frame(WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 3);
+            ByteBuffer image = (ByteBuffer) frame.image[0];
+            ShortBuffer samples = ShortBuffer.allocate(SAMPLE_RATE / FRAME_RATE);
+            for (int i = 0; i < seconds * FRAME_RATE; i++) {
+                for (int j = 0; j < image.capacity(); j++) {
+                    image.put(j, (byte) (j / 3 + i * 4));
+                }
+                recorder.record(frame);
+
+                for (int j = 0; j < samples.capacity(); j++) {
+                    samples.put(j, (short) (Math.sin((i * samples.capacity() + j) * 0.05) * 8000));
+                }
+                recorder.recordSamples(SAMPLE_RATE, 1, samples);
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,76 @@
+package com.aaron.stream.flv;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting the muxer output into tags. The muxer's AVIO context hands over at most 4 KiB per write and flushes at
+ * the end of every packet, the input is written the same way.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlvTagOutputStreamBenchmark {
+    private static final int TAGS = 100;
+    private static final int AVIO_BUFFER_SIZE = 4096;
+
+    /**
+     * Tag data size: audio frame, P frame, key frame
+     */
+    @Param({"200", "4000", "60000"})
+    private int tagSize;
+
+    private byte[] fileHeader;
+    private byte[] tag;
+
+    @Setup
+    public void setup() {
+        fileHeader = new byte[]{'F', 'L', 'V', 1, 5, 0, 0, 0, 9, 0, 0, 0, 0};
+
+        tag = new byte[FlvTag.TAG_HEADER_SIZE + tagSize + FlvTag.PREVIOUS_TAG_SIZE];
+        tag[0] = FlvTag.TYPE_VIDEO;
+        tag[1] = (byte) (tagSize >> 16);
+        tag[2] = (byte) (tagSize >> 8);
+        tag[3] = (byte) tagSize;
+        tag[FlvTag.TAG_HEADER_SIZE] = 0x27; // Inter frame, AVC
+        tag[FlvTag.TAG_HEADER_SIZE + 1] = 1; // NALU
+        int previousTagSize = FlvTag.TAG_HEADER_SIZE + tagSize;
+        tag[tag.length - 4] = (byte) (previousTagSize >> 24);
+        tag[tag.length - 3] = (byte) (previousTagSize >> 16);
+        tag[tag.length - 2] = (byte) (previousTagSize >> 8);
+        tag[tag.length - 1] = (byte) previousTagSize;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TAGS)
+    public void writeTags(Blackhole bh) {
+        FlvTagOutputStream out = new FlvTagOutputStream(PooledByteBufAllocator.DEFAULT, flvTag -> {
+            bh.consume(flvTag.type());
+            flvTag.release();
+        });
+        out.write(fileHeader, 0, fileHeader.length);
+        for (int i = 0; i < TAGS; i++) {
+            for (int off = 0; off < tag.length; off += AVIO_BUFFER_SIZE) {
+                out.write(tag, off, Math.min(AVIO_BUFFER_SIZE, tag.length - off));
+            }
+        }
+        out.close();
+    }
+}
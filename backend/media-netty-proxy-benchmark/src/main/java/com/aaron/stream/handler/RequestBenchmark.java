@@ -0,0 +1,59 @@
+package com.aaron.stream.handler;
+
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.utils.ProxyInit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request work before a stream is looked up: routing the url to a camera code and checking the credentials
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+    private final String uri = "/a8b2c6d0e4f84c1e9d7a3b5f6e2c1d09";
+    private String validAuth;
+    private String invalidAuth;
+
+    @Setup
+    public void setup() {
+        ProxyProperties properties = ProxyInit.getProxyProperties();
+        validAuth = basic(properties.getUsername() + ":" + properties.getPassword());
+        invalidAuth = basic(properties.getUsername() + ":" + properties.getPassword() + "x");
+    }
+
+    private static String basic(String credentials) {
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String parseCameraCode() {
+        return RequestRouter.cameraCode(uri);
+    }
+
+    @Benchmark
+    public boolean validAuth() {
+        return AbstractChannelInboundHandler.isValidAuth(validAuth);
+    }
+
+    @Benchmark
+    public boolean invalidAuth() {
+        return AbstractChannelInboundHandler.isValidAuth(invalidAuth);
+    }
+}
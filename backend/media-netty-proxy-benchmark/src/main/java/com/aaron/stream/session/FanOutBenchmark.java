@@ -0,0 +1,95 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.flv.FlvTag;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One tag offered to every viewer of a session and written through the HTTP encoder, as the session thread and
+ * the event loops do it. {@link EmbeddedChannel}s stand in for the sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final long MAX_LAG_MILLIS = 10000;
+
+    @Param({"1", "10", "100"})
+    private int viewers;
+
+    @Param({"4000"})
+    private int tagSize;
+
+    private EmbeddedChannel[] channels;
+    private StreamSubscriber[] subscribers;
+    private byte[] data;
+    private int timestamp;
+
+    @Setup
+    public void setup() {
+        channels = new EmbeddedChannel[viewers];
+        subscribers = new StreamSubscriber[viewers];
+        for (int i = 0; i < viewers; i++) {
+            channels[i] = new EmbeddedChannel(new HttpResponseEncoder());
+            subscribers[i] = new StreamSubscriber(channels[i], HttpFlvTransport.INSTANCE, MAX_LAG_MILLIS, new LongAdder());
+            subscribers[i].start();
+            channels[i].flushOutbound();
+            discardOutbound(channels[i]);
+        }
+
+        data = new byte[FlvTag.TAG_HEADER_SIZE + tagSize + FlvTag.PREVIOUS_TAG_SIZE];
+        data[0] = FlvTag.TYPE_VIDEO;
+        data[FlvTag.TAG_HEADER_SIZE] = 0x27; // Inter frame, AVC
+        data[FlvTag.TAG_HEADER_SIZE + 1] = 1; // NALU
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Benchmark
+    public void fanOut() {
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(data.length).writeBytes(data);
+        FlvTag tag = new FlvTag(FlvTag.TYPE_VIDEO, timestamp += 40, content);
+        for (StreamSubscriber subscriber : subscribers) {
+            subscriber.offer(tag);
+        }
+        tag.release();
+
+        for (EmbeddedChannel channel : channels) {
+            channel.runPendingTasks();
+            discardOutbound(channel);
+        }
+    }
+
+    private static void discardOutbound(EmbeddedChannel channel) {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
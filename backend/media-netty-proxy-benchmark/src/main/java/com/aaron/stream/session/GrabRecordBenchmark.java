@@ -0,0 +1,106 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.benchmark.SampleFile;
+import com.aaron.stream.flv.FlvTag;
+import com.aaron.stream.flv.FlvTagOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole session pipeline over a local sample file: grab, remux or transcode, split into tags. The file is read as
+ * fast as possible, so the secondary {@code frames} result is the frame rate one session can sustain.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class GrabRecordBenchmark {
+    private static final int SAMPLE_SECONDS = 10;
+    private static final long OPEN_TIMEOUT_MILLIS = 10000;
+
+    @Param({"remux", "transcode"})
+    private String mode;
+
+    @Param({"1"})
+    private int encoderThreads;
+
+    private File sample;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sample = SampleFile.create(SAMPLE_SECONDS);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Frames {
+        public long frames;
+    }
+
+    @Benchmark
+    public void grabRecord(Frames frames) throws IOException {
+        FFmpegFrameGrabber grabber = new LiveGrabber(sample.getAbsolutePath(), OPEN_TIMEOUT_MILLIS);
+        grabber.start();
+        try (FlvTagOutputStream outputStream = new FlvTagOutputStream(PooledByteBufAllocator.DEFAULT, FlvTag::release)) {
+            if ("remux".equals(mode)) {
+                frames.frames += remux(grabber, outputStream);
+            } else {
+                frames.frames += transcode(grabber, outputStream);
+            }
+        } finally {
+            grabber.stop();
+        }
+    }
+
+    private long remux(FFmpegFrameGrabber grabber, FlvTagOutputStream outputStream) throws IOException {
+        long count = 0;
+        try (FFmpegFrameRecorder recorder = new LiveRemuxer(outputStream, grabber)) {
+            recorder.start(grabber.getFormatContext());
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                recorder.recordPacket(packet);
+                avcodec.av_packet_unref(packet);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long transcode(FFmpegFrameGrabber grabber, FlvTagOutputStream outputStream) throws IOException {
+        long count = 0;
+        try (FFmpegFrameRecorder recorder = new LiveRecorder(outputStream, grabber.getImageWidth(),
+                grabber.getImageHeight(), grabber.getAudioChannels(), encoderThreads)) {
+            recorder.start();
+            Frame frame;
+            while ((frame = grabber.grab()) != null) {
+                recorder.setTimestamp(grabber.getTimestamp());
+                recorder.record(frame);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,245 @@
+package com.aaron.stream.cluster;
+
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.session.Rendition;
+import com.aaron.stream.utils.ProxyInit;
+import io.netty.handler.codec.http.HttpRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Proxy nodes sharing the cameras: every camera is owned by one node of a static peer list, chosen by consistent
+ * hashing of its code, so the nodes agree without talking to each other and adding a node only moves the cameras it
+ * takes over.
+ * <p>
+ * Only the owner pulls a camera. Another node relays the owner's FLV stream over one internal connection per camera
+ * rendition and fans it out to its own viewers, or redirects the viewers to the owner. Relayed requests carry a
+ * header and are always served by the node they reach, so a relay never loops even if the nodes' peer lists differ.
+ * <p>
+ * The relay header is signed with the cluster secret, over the sending node, the request path and the time: a
+ * viewer holding the nodes' credentials can't pass for a relay, which is exempt from the credential limits and
+ * makes a node pull a camera it doesn't own. Without a secret no relay is trusted.
+ */
+@Slf4j
+public class ProxyCluster {
+    private final static ProxyProperties PROXY_PROPERTIES = ProxyInit.getProxyProperties();
+    private final static int VIRTUAL_NODES = 160; // Points per node on the ring, evens out the cameras per node
+    private final static String RELAY_HEADER = "X-Proxy-Relay";
+    private final static String SIGNATURE_ALGORITHM = "HmacSHA256";
+    private final static long RELAY_MAX_AGE_SECONDS = 300; // Clock skew between the nodes included
+    private final static ProxyCluster INSTANCE = new ProxyCluster(PROXY_PROPERTIES.getClusterNodes(),
+            PROXY_PROPERTIES.getClusterSelf(), PROXY_PROPERTIES.isClusterRedirect(),
+            PROXY_PROPERTIES.getUsername(), PROXY_PROPERTIES.getPassword(), PROXY_PROPERTIES.getClusterSecret());
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+    private final String self;
+    private final boolean redirect;
+    private final String authorizationHeader;
+    private final SecretKeySpec secret; // Null if relays can't be signed
+    private final List<String> peerPrefixes = new ArrayList<>(); // Stream urls of the other nodes start with them
+
+    /**
+     * @param nodes    {@code host:port} of every node, comma separated, null or blank to disable the cluster
+     * @param self     {@code host:port} of this node as listed in the nodes
+     * @param redirect redirect the viewers of other nodes' cameras instead of relaying the streams
+     * @param username Basic credentials of the nodes
+     * @param password Basic credentials of the nodes
+     * @param secret   key the nodes sign their relay requests with, null or blank to trust no relay
+     */
+    ProxyCluster(String nodes, String self, boolean redirect, String username, String password, String secret) {
+        this.self = self == null ? "" : self.trim();
+        this.redirect = redirect;
+        String credentials = Base64.getEncoder().encodeToString(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.authorizationHeader = "Authorization: Basic " + credentials + "\r\n";
+        this.secret = secret == null || secret.isBlank() ? null
+                : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), SIGNATURE_ALGORITHM);
+        if (nodes == null || nodes.isBlank()) {
+            return;
+        }
+
+        List<String> peers = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (!node.isBlank()) {
+                peers.add(node.trim());
+            }
+        }
+        if (!peers.contains(this.self)) {
+            log.error("Cluster disabled, this node {} is not one of the nodes {}", this.self, peers);
+            return;
+        }
+        for (String peer : peers) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(peer + "#" + i), peer);
+            }
+            if (!peer.equals(this.self)) {
+                peerPrefixes.add("http://" + peer + "/");
+            }
+        }
+        log.info("Cluster of {} nodes, this node {}, {} other nodes' cameras", peers.size(), this.self,
+                redirect ? "redirecting to" : "relaying");
+        if (this.secret == null) {
+            log.warn("Cluster without a secret, relays are served as viewers and count against the credential limits");
+        }
+    }
+
+    public static ProxyCluster getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Node owning the camera, unless it's this one or the request was relayed by another node
+     *
+     * @param cameraCode camera index code
+     * @param request    request
+     * @return {@code host:port} of the owner, null to serve the request here
+     */
+    public String owner(String cameraCode, HttpRequest request) {
+        if (ring.isEmpty() || isRelayed(request)) {
+            return null;
+        }
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(cameraCode));
+        String owner = point != null ? point.getValue() : ring.firstEntry().getValue();
+        return owner.equals(self) ? null : owner;
+    }
+
+    /**
+     * Whether the request is another node's relay, its relay header signed with the cluster secret
+     *
+     * @param request request
+     * @return true or false, false for a header that doesn't verify
+     */
+    public boolean isRelayed(HttpRequest request) {
+        String value = request.headers().get(RELAY_HEADER);
+        if (value == null || secret == null) {
+            return false;
+        }
+        // Node, epoch seconds, signature
+        String[] fields = value.trim().split(" ");
+        if (fields.length != 3) {
+            return false;
+        }
+        long time;
+        try {
+            time = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (Math.abs(System.currentTimeMillis() / 1000 - time) > RELAY_MAX_AGE_SECONDS) {
+            log.debug("Relay header of {} expired", fields[0]);
+            return false;
+        }
+        byte[] expected = sign(fields[0], path(request.uri()), time).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, fields[2].getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Whether the viewers of other nodes' cameras are redirected rather than relayed
+     */
+    public boolean isRedirect() {
+        return redirect;
+    }
+
+    /**
+     * Same request on the owner
+     *
+     * @param owner {@code host:port} of the owner
+     * @param uri   request uri
+     * @return url for the Location header
+     */
+    public String redirectUrl(String owner, String uri) {
+        return "http://" + owner + uri;
+    }
+
+    /**
+     * HTTP-FLV stream of the camera rendition on the owner, the source of a relay session
+     *
+     * @param owner      {@code host:port} of the owner
+     * @param cameraCode camera index code
+     * @param rendition  rendition
+     * @return stream url
+     */
+    public String relayUrl(String owner, String cameraCode, Rendition rendition) {
+        return "http://" + owner + "/" + cameraCode + rendition.uriQuery();
+    }
+
+    /**
+     * Whether the stream url is another node's stream
+     *
+     * @param streamUrl stream url
+     * @return true or false
+     */
+    public boolean isRelayUrl(String streamUrl) {
+        for (String prefix : peerPrefixes) {
+            if (streamUrl.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Headers FFmpeg sends with a relay request: the nodes' credentials and the signed relay mark, signed when the
+     * grabber is created so every reconnect gets a fresh one
+     *
+     * @param streamUrl stream url
+     * @return CRLF terminated headers, null if the url isn't another node's stream
+     */
+    public String relayHeaders(String streamUrl) {
+        if (!isRelayUrl(streamUrl)) {
+            return null;
+        }
+        if (secret == null) {
+            return authorizationHeader;
+        }
+        long time = System.currentTimeMillis() / 1000;
+        String path = path(streamUrl.substring(streamUrl.indexOf('/', "http://".length()))); // As the owner reads it
+        return authorizationHeader + RELAY_HEADER + ": " + self + " " + time + " " + sign(self, path, time) + "\r\n";
+    }
+
+    private String sign(String node, String path, long time) {
+        try {
+            Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+            mac.init(secret);
+            byte[] signature = mac.doFinal((node + "\n" + path + "\n" + time).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // Every JVM has HmacSHA256
+        }
+    }
+
+    private static String path(String uri) {
+        int query = uri.indexOf('?');
+        return query < 0 ? uri : uri.substring(0, query);
+    }
+
+    /**
+     * First 8 bytes of the MD5, spread evenly whatever the input
+     */
+    private static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has MD5
+        }
+        byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = hash << 8 | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
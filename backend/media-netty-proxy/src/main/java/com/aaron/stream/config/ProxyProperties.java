@@ -10,4 +10,44 @@ public class ProxyProperties {
     private String username;
     private String password;
     private boolean test;
+    private int sessionIdleGrace; // Seconds a stream session stays open after its last viewer leaves
+    private boolean passthrough; // Copy H.264/AAC sources into FLV without re-encoding
+    private int maxSessions; // Concurrent camera sessions, new cameras beyond it get a 503
+    private int encoderThreads; // x264 threads per transcoding session, 0 derives it from the core count
+    private int writeBufferLow; // Bytes, a slow viewer gets frames again below it
+    private int writeBufferHigh; // Bytes, frames of a slow viewer are dropped above it
+    private long maxLag; // Milliseconds a slow viewer may keep dropping frames before being disconnected
+    private int urlCacheTtl; // Seconds a stream url is cached, must be below the platform's url token lifetime
+    private long openTimeout; // Milliseconds to look up the url and to open the camera, a viewer gets a 504 after it
+    private boolean nativeTransport; // Use epoll when available
+    private int bossThreads;
+    private int workerThreads; // 0 for netty's default, twice the core count
+    private int sendBufferSize; // SO_SNDBUF of viewer sockets, 0 keeps the OS default
+    private long gopCacheMaxBytes; // Bytes of the last GOP cached per stream for new viewers, a larger GOP is not cached
+    private long gopCacheTotalBytes; // Bytes of the GOPs cached for all streams
+    private long reconnectWindow; // Milliseconds a lost camera stream is reopened for while its viewers wait, 0 ends it at once
+    private long reconnectBackoff; // Milliseconds, bound of the first random reconnect delay, doubled on every failed attempt
+    private long reconnectMaxBackoff; // Milliseconds, cap of the reconnect delay bound
+    private int probeSize; // Bytes read to find the parameters of a camera opened for the first time
+    private long analyzeDuration; // Milliseconds of stream read to find the parameters of a camera opened for the first time
+    private int fastProbeSize; // Bytes read when the camera's parameters are known from a previous open
+    private long fastAnalyzeDuration; // Milliseconds of stream read when the camera's parameters are known
+    private long hlsPartDuration; // Milliseconds, maximum duration of an LL-HLS part
+    private long hlsSegmentDuration; // Milliseconds, an HLS segment ends on the first key frame after it
+    private long hlsCacheMaxBytes; // Bytes of HLS segments and parts cached for all streams
+    private String recordDir; // Directory of the session recordings, empty to disable recording
+    private long recordSegmentDuration; // Milliseconds, a recording segment ends on the first key frame after it
+    private long recordRetention; // Seconds a recording segment is kept
+    private long recordQuota; // Bytes of all recordings, the oldest segments are deleted above it
+    private long snapshotTtl; // Milliseconds a snapshot is cached
+    private int snapshotWorkers; // Concurrent snapshot decodes
+    private int maxTranscodes; // Concurrent transcoding sessions, 0 for as many as sessions
+    private int maxCameraPulls; // Concurrent sessions and snapshot grabs of one camera, 0 for no limit
+    private int maxStreamsPerCredential; // Concurrent live streams of one credential, 0 for no limit
+    private String clusterNodes; // host:port of every proxy node, comma separated, empty for a single node
+    private String clusterSelf; // host:port of this node as listed in the cluster nodes
+    private boolean clusterRedirect; // Redirect the viewers of other nodes' cameras instead of relaying the streams
+    private String clusterSecret; // Shared by the nodes to sign their relay requests, relays aren't trusted without it
+    private String resolver; // Name of the stream url provider, empty for the Hikvision platform
+    private String resolverSource; // Setting of the stream url provider, e.g. its mapping file
 }
@@ -7,4 +7,44 @@ public interface ProxyConst {
     String USERNAME = "PROXY_USERNAME";
     String PASSWORD = "PROXY_PASSWORD";
     String TEST = "PROXY_TEST";
+    String SESSION_IDLE_GRACE = "PROXY_SESSION_IDLE_GRACE";
+    String PASSTHROUGH = "PROXY_PASSTHROUGH";
+    String MAX_SESSIONS = "PROXY_MAX_SESSIONS";
+    String ENCODER_THREADS = "PROXY_ENCODER_THREADS";
+    String WRITE_BUFFER_LOW = "PROXY_WRITE_BUFFER_LOW";
+    String WRITE_BUFFER_HIGH = "PROXY_WRITE_BUFFER_HIGH";
+    String MAX_LAG = "PROXY_MAX_LAG";
+    String URL_CACHE_TTL = "PROXY_URL_CACHE_TTL";
+    String OPEN_TIMEOUT = "PROXY_OPEN_TIMEOUT";
+    String NATIVE_TRANSPORT = "PROXY_NATIVE_TRANSPORT";
+    String BOSS_THREADS = "PROXY_BOSS_THREADS";
+    String WORKER_THREADS = "PROXY_WORKER_THREADS";
+    String SEND_BUFFER_SIZE = "PROXY_SEND_BUFFER_SIZE";
+    String GOP_CACHE_SIZE = "PROXY_GOP_CACHE_SIZE";
+    String GOP_CACHE_TOTAL_SIZE = "PROXY_GOP_CACHE_TOTAL_SIZE";
+    String RECONNECT_WINDOW = "PROXY_RECONNECT_WINDOW";
+    String RECONNECT_BACKOFF = "PROXY_RECONNECT_BACKOFF";
+    String RECONNECT_MAX_BACKOFF = "PROXY_RECONNECT_MAX_BACKOFF";
+    String PROBE_SIZE = "PROXY_PROBE_SIZE";
+    String ANALYZE_DURATION = "PROXY_ANALYZE_DURATION";
+    String FAST_PROBE_SIZE = "PROXY_FAST_PROBE_SIZE";
+    String FAST_ANALYZE_DURATION = "PROXY_FAST_ANALYZE_DURATION";
+    String HLS_PART_DURATION = "PROXY_HLS_PART_DURATION";
+    String HLS_SEGMENT_DURATION = "PROXY_HLS_SEGMENT_DURATION";
+    String HLS_CACHE_SIZE = "PROXY_HLS_CACHE_SIZE";
+    String RECORD_DIR = "PROXY_RECORD_DIR";
+    String RECORD_SEGMENT_DURATION = "PROXY_RECORD_SEGMENT_DURATION";
+    String RECORD_RETENTION = "PROXY_RECORD_RETENTION";
+    String RECORD_QUOTA = "PROXY_RECORD_QUOTA";
+    String SNAPSHOT_TTL = "PROXY_SNAPSHOT_TTL";
+    String SNAPSHOT_WORKERS = "PROXY_SNAPSHOT_WORKERS";
+    String MAX_TRANSCODES = "PROXY_MAX_TRANSCODES";
+    String MAX_CAMERA_PULLS = "PROXY_MAX_CAMERA_PULLS";
+    String MAX_STREAMS_PER_CREDENTIAL = "PROXY_MAX_STREAMS_PER_CREDENTIAL";
+    String CLUSTER_NODES = "PROXY_CLUSTER_NODES";
+    String CLUSTER_SELF = "PROXY_CLUSTER_SELF";
+    String CLUSTER_REDIRECT = "PROXY_CLUSTER_REDIRECT";
+    String CLUSTER_SECRET = "PROXY_CLUSTER_SECRET";
+    String RESOLVER = "PROXY_RESOLVER";
+    String RESOLVER_SOURCE = "PROXY_RESOLVER_SOURCE";
 }
@@ -0,0 +1,121 @@
+package com.aaron.stream.flv;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * One complete FLV tag (or the FLV file header), including the trailing PreviousTagSize field
+ */
+public class FlvTag extends AbstractReferenceCounted {
+    public static final int TYPE_HEADER = 0; // FLV file header, not a real tag type
+    public static final int TYPE_AUDIO = 8;
+    public static final int TYPE_VIDEO = 9;
+    public static final int TYPE_SCRIPT = 18;
+
+    public static final int TAG_HEADER_SIZE = 11;
+    public static final int PREVIOUS_TAG_SIZE = 4;
+
+    private static final int VIDEO_FRAME_KEY = 1;
+    private static final int VIDEO_CODEC_AVC = 7;
+    private static final int AUDIO_FORMAT_AAC = 10;
+
+    private final int type;
+    private int timestamp;
+    private final ByteBuf content;
+    private final long createdNanos = System.nanoTime();
+
+    public FlvTag(int type, int timestamp, ByteBuf content) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.content = content;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    /**
+     * Tag timestamp in milliseconds
+     */
+    public int timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Rewrite the timestamp, in the tag header too, before the tag is passed on
+     */
+    void setTimestamp(int timestamp) {
+        this.timestamp = timestamp;
+        int index = content.readerIndex();
+        content.setMedium(index + 4, timestamp & 0xffffff);
+        content.setByte(index + 7, timestamp >>> 24);
+    }
+
+    /**
+     * Raw tag bytes, ready to be written to a client
+     */
+    public ByteBuf content() {
+        return content;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the muxer wrote the tag
+     */
+    public long createdNanos() {
+        return createdNanos;
+    }
+
+    public boolean isVideo() {
+        return type == TYPE_VIDEO;
+    }
+
+    /**
+     * Video key frame (IDR), sequence headers excluded
+     */
+    public boolean isKeyFrame() {
+        return isVideo() && (dataByte(0) >> 4) == VIDEO_FRAME_KEY && !isSequenceHeader();
+    }
+
+    /**
+     * AVC decoder configuration or AAC audio specific config, needed by every new player
+     */
+    public boolean isSequenceHeader() {
+        if (type == TYPE_VIDEO) {
+            return (dataByte(0) & 0x0f) == VIDEO_CODEC_AVC && dataByte(1) == 0;
+        }
+        if (type == TYPE_AUDIO) {
+            return (dataByte(0) >> 4) == AUDIO_FORMAT_AAC && dataByte(1) == 0;
+        }
+        return false;
+    }
+
+    /**
+     * Tags every player needs before the first media tag: file header, metadata and sequence headers
+     */
+    public boolean isInitTag() {
+        return type == TYPE_HEADER || type == TYPE_SCRIPT || isSequenceHeader();
+    }
+
+    private int dataByte(int index) {
+        int offset = content.readerIndex() + TAG_HEADER_SIZE + index;
+        return offset < content.writerIndex() ? content.getUnsignedByte(offset) : -1;
+    }
+
+    @Override
+    public FlvTag retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        content.release();
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+        content.touch(hint);
+        return this;
+    }
+}
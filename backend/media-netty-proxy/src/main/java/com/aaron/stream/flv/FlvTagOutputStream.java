@@ -0,0 +1,138 @@
+package com.aaron.stream.flv;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * Muxer output that splits the FLV byte stream into complete tags.
+ * <p>
+ * The muxer writes a tag in several small pieces, they are gathered into one pooled direct buffer per tag, sized
+ * from the tag header, so each tag costs a single allocation and can be written to every viewer without copying.
+ */
+public class FlvTagOutputStream extends OutputStream {
+    private static final int FILE_HEADER_SIZE = 9 + FlvTag.PREVIOUS_TAG_SIZE;
+    private static final int NO_REBASE = -1;
+
+    private final ByteBufAllocator allocator;
+    private final Consumer<FlvTag> tagConsumer;
+    private final byte[] header = new byte[FILE_HEADER_SIZE];
+    private final byte[] oneByte = new byte[1];
+    private int headerLength;
+    private boolean fileHeaderRead;
+    private boolean closed;
+
+    // Continuation of an interrupted stream
+    private final int startTimestamp;
+    private int timestampOffset;
+    private boolean timestampOffsetSet;
+
+    // Tag being gathered, null while its header is still incomplete
+    private ByteBuf tag;
+    private int tagType;
+    private int tagTimestamp;
+
+    /**
+     * @param allocator   allocator of the tag buffers
+     * @param tagConsumer receives every complete tag, and owns it afterwards
+     */
+    public FlvTagOutputStream(ByteBufAllocator allocator, Consumer<FlvTag> tagConsumer) {
+        this(allocator, tagConsumer, NO_REBASE);
+    }
+
+    /**
+     * Continue a stream whose source was reopened: the new file header is dropped, and the timestamps are shifted
+     * so the first audio or video tag is at {@code startTimestamp}
+     *
+     * @param allocator      allocator of the tag buffers
+     * @param tagConsumer    receives every complete tag, and owns it afterwards
+     * @param startTimestamp timestamp of the first media tag, in milliseconds
+     */
+    public FlvTagOutputStream(ByteBufAllocator allocator, Consumer<FlvTag> tagConsumer, int startTimestamp) {
+        this.allocator = allocator;
+        this.tagConsumer = tagConsumer;
+        this.startTimestamp = startTimestamp;
+    }
+
+    @Override
+    public void write(int b) {
+        oneByte[0] = (byte) b;
+        write(oneByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (tag == null) {
+                int headerSize = fileHeaderRead ? FlvTag.TAG_HEADER_SIZE : FILE_HEADER_SIZE;
+                int n = Math.min(len, headerSize - headerLength);
+                System.arraycopy(b, off, header, headerLength, n);
+                headerLength += n;
+                off += n;
+                len -= n;
+                if (headerLength < headerSize) {
+                    return;
+                }
+                headerLength = 0;
+                if (!fileHeaderRead) {
+                    fileHeaderRead = true;
+                    if (startTimestamp != NO_REBASE) {
+                        continue;
+                    }
+                    ByteBuf fileHeader = allocator.directBuffer(FILE_HEADER_SIZE).writeBytes(header, 0, FILE_HEADER_SIZE);
+                    tagConsumer.accept(new FlvTag(FlvTag.TYPE_HEADER, 0, fileHeader));
+                    continue;
+                }
+                startTag();
+            }
+
+            int n = Math.min(len, tag.writableBytes());
+            tag.writeBytes(b, off, n);
+            off += n;
+            len -= n;
+            if (!tag.isWritable()) {
+                ByteBuf content = tag;
+                tag = null;
+                FlvTag flvTag = new FlvTag(tagType, tagTimestamp, content);
+                if (startTimestamp != NO_REBASE) {
+                    rebase(flvTag);
+                }
+                tagConsumer.accept(flvTag);
+            }
+        }
+    }
+
+    private void startTag() {
+        int dataSize = (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | header[3] & 0xff;
+        tagType = header[0] & 0x1f;
+        tagTimestamp = (header[7] & 0xff) << 24 | (header[4] & 0xff) << 16 | (header[5] & 0xff) << 8 | header[6] & 0xff;
+        tag = allocator.directBuffer(FlvTag.TAG_HEADER_SIZE + dataSize + FlvTag.PREVIOUS_TAG_SIZE);
+        tag.writeBytes(header, 0, FlvTag.TAG_HEADER_SIZE);
+    }
+
+    /**
+     * Init tags are written before the first media tag, they take its timestamp
+     */
+    private void rebase(FlvTag flvTag) {
+        if (!timestampOffsetSet && !flvTag.isInitTag()) {
+            timestampOffset = startTimestamp - flvTag.timestamp();
+            timestampOffsetSet = true;
+        }
+        flvTag.setTimestamp(timestampOffsetSet ? Math.max(startTimestamp, flvTag.timestamp() + timestampOffset) : startTimestamp);
+    }
+
+    @Override
+    public void close() {
+        // The recorder closes its output stream too
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (tag != null) {
+            tag.release();
+            tag = null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.aaron.stream.flv;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Init tags and most recent complete GOP of a live stream, replayed to a new viewer so it can render a frame at once
+ * instead of waiting for the next key frame.
+ * <p>
+ * The GOP is kept in a ring buffer that is reused from one GOP to the next. A GOP that grows past the per stream
+ * limit, or past the limit shared by all streams, is dropped entirely until the next key frame, since a GOP
+ * missing its tail would leave the new viewer with undecodable frames when it switches to the live tags.
+ * <p>
+ * Not thread safe.
+ */
+public class GopCache {
+    private static final AtomicLong TOTAL_BYTES = new AtomicLong();
+
+    private final long maxBytes;
+    private final long totalMaxBytes;
+
+    // Init tags, a repeated one replaces the previous
+    private FlvTag fileHeader;
+    private FlvTag metadata;
+    private FlvTag videoConfig;
+    private FlvTag audioConfig;
+
+    private final ArrayDeque<FlvTag> gop = new ArrayDeque<>();
+    private long gopBytes;
+    private boolean skipping = true; // Until the first key frame, or after an overflow
+
+    /**
+     * @param maxBytes      limit of one stream's GOP
+     * @param totalMaxBytes limit of the GOPs of all streams
+     */
+    public GopCache(long maxBytes, long totalMaxBytes) {
+        this.maxBytes = maxBytes;
+        this.totalMaxBytes = totalMaxBytes;
+    }
+
+    /**
+     * Bytes held by the GOP caches of all streams
+     */
+    public static long getTotalBytes() {
+        return TOTAL_BYTES.get();
+    }
+
+    /**
+     * Cache the tag if needed, the cache retains what it keeps
+     *
+     * @param tag live tag
+     */
+    public void add(FlvTag tag) {
+        if (tag.isInitTag()) {
+            setInitTag(tag);
+            return;
+        }
+
+        if (tag.isKeyFrame()) {
+            clearGop();
+            skipping = false;
+        }
+        if (skipping) {
+            return;
+        }
+
+        int size = tag.content().readableBytes();
+        if (gopBytes + size > maxBytes || !reserve(size)) {
+            clearGop();
+            skipping = true;
+            return;
+        }
+        gop.addLast(tag.retain());
+        gopBytes += size;
+    }
+
+    /**
+     * Pass the init tags and the GOP, in stream order
+     *
+     * @param consumer tag consumer, tags are not retained for it
+     */
+    public void replay(Consumer<FlvTag> consumer) {
+        replayInitTags(consumer);
+        for (FlvTag tag : gop) {
+            consumer.accept(tag);
+        }
+    }
+
+    /**
+     * Pass the init tags only: file header, metadata and sequence headers
+     *
+     * @param consumer tag consumer, tags are not retained for it
+     */
+    public void replayInitTags(Consumer<FlvTag> consumer) {
+        for (FlvTag tag : new FlvTag[]{fileHeader, metadata, videoConfig, audioConfig}) {
+            if (tag != null) {
+                consumer.accept(tag);
+            }
+        }
+    }
+
+    /**
+     * FLV file of the file header, the video sequence header and the GOP's key frame, enough to decode one picture
+     *
+     * @return file bytes, null if there is no complete GOP
+     */
+    public byte[] keyFrameFile() {
+        FlvTag keyFrame = gop.peekFirst();
+        if (fileHeader == null || videoConfig == null || keyFrame == null) {
+            return null;
+        }
+        FlvTag[] tags = {fileHeader, videoConfig, keyFrame};
+        int length = 0;
+        for (FlvTag tag : tags) {
+            length += tag.content().readableBytes();
+        }
+        byte[] file = new byte[length];
+        int offset = 0;
+        for (FlvTag tag : tags) {
+            ByteBuf content = tag.content();
+            content.getBytes(content.readerIndex(), file, offset, content.readableBytes());
+            offset += content.readableBytes();
+        }
+        return file;
+    }
+
+    public long getGopBytes() {
+        return gopBytes;
+    }
+
+    /**
+     * Release everything
+     */
+    public void clear() {
+        clearGop();
+        skipping = true;
+        fileHeader = release(fileHeader);
+        metadata = release(metadata);
+        videoConfig = release(videoConfig);
+        audioConfig = release(audioConfig);
+    }
+
+    private void setInitTag(FlvTag tag) {
+        tag.retain();
+        switch (tag.type()) {
+            case FlvTag.TYPE_HEADER:
+                release(fileHeader);
+                fileHeader = tag;
+                break;
+            case FlvTag.TYPE_SCRIPT:
+                release(metadata);
+                metadata = tag;
+                break;
+            case FlvTag.TYPE_VIDEO:
+                release(videoConfig);
+                videoConfig = tag;
+                break;
+            default:
+                release(audioConfig);
+                audioConfig = tag;
+                break;
+        }
+    }
+
+    private boolean reserve(int size) {
+        if (TOTAL_BYTES.addAndGet(size) > totalMaxBytes) {
+            TOTAL_BYTES.addAndGet(-size);
+            return false;
+        }
+        return true;
+    }
+
+    private void clearGop() {
+        FlvTag tag;
+        while ((tag = gop.pollFirst()) != null) {
+            tag.release();
+        }
+        TOTAL_BYTES.addAndGet(-gopBytes);
+        gopBytes = 0;
+    }
+
+    private static FlvTag release(FlvTag tag) {
+        if (tag != null) {
+            tag.release();
+        }
+        return null;
+    }
+}
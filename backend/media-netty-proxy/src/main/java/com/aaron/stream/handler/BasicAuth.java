@@ -0,0 +1,61 @@
+package com.aaron.stream.handler;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The configured Basic credentials, encoded once. Checks compare every character whatever the input, so the time
+ * taken doesn't tell how much of a guess was right, and allocate nothing.
+ */
+final class BasicAuth {
+    private final static String SCHEME = "Basic ";
+
+    private final String expectedHeader;
+
+    BasicAuth(String username, String password) {
+        byte[] credentials = (username + ":" + password).getBytes(StandardCharsets.UTF_8);
+        this.expectedHeader = SCHEME + Base64.getEncoder().encodeToString(credentials);
+    }
+
+    /**
+     * Authorization header
+     *
+     * @param header {@code Basic base64(username:password)}
+     * @return true or false
+     */
+    boolean isValidHeader(CharSequence header) {
+        return header != null && matches(header, 0);
+    }
+
+    /**
+     * Credentials passed without the scheme, as the {@code token} query parameter
+     *
+     * @param token {@code base64(username:password)}
+     * @return true or false
+     */
+    boolean isValidToken(CharSequence token) {
+        return token != null && matches(token, SCHEME.length());
+    }
+
+    /**
+     * Credentials of a valid header, as they are passed in a token
+     *
+     * @param header valid {@code Basic base64(username:password)}
+     * @return {@code base64(username:password)}
+     */
+    static String token(@NotNull String header) {
+        return header.substring(SCHEME.length());
+    }
+
+    private boolean matches(@NotNull CharSequence actual, int offset) {
+        int length = expectedHeader.length() - offset;
+        int diff = actual.length() ^ length;
+        for (int i = 0; i < length; i++) {
+            char c = i < actual.length() ? actual.charAt(i) : 0;
+            diff |= c ^ expectedHeader.charAt(offset + i);
+        }
+        return diff == 0;
+    }
+}
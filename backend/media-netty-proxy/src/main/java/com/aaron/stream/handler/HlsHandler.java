@@ -0,0 +1,153 @@
+package com.aaron.stream.handler;
+
+import com.aaron.stream.hls.HlsPackager;
+import com.aaron.stream.hls.SegmentCache;
+import com.aaron.stream.session.Rendition;
+import com.aaron.stream.session.StreamHub;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Low-latency HLS: {@code /{cameraCode}/index.m3u8} and the init segments, segments and parts it lists. Other
+ * requests are passed on.
+ * <p>
+ * Segments and parts are answered from the {@link SegmentCache}, and so is the playlist of a running session,
+ * without looking the stream url up. A playlist request with {@code _HLS_msn} (and {@code _HLS_part}) is held
+ * until the playlist lists that segment (or part), up to three target durations.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+public class HlsHandler extends AbstractChannelInboundHandler {
+    private final static int RETRY_AFTER_SECONDS = 5;
+    private final static String MSN_PARAM = "_HLS_msn";
+    private final static String PART_PARAM = "_HLS_part";
+    private final static String PLAYLIST_CONTENT_TYPE = "application/vnd.apple.mpegurl";
+    private final static String SEGMENT_CONTENT_TYPE = "video/mp4";
+    private final static String SEGMENT_CACHE_CONTROL = "public, max-age=3600"; // Names are never reused
+
+    private final static StreamHub STREAM_HUB = StreamHub.getInstance();
+    private final static SegmentCache SEGMENT_CACHE = SegmentCache.getInstance();
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) {
+        return msg instanceof FullHttpRequest && RequestRouter.resource(((FullHttpRequest) msg).uri()) != null;
+    }
+
+    @Override
+    protected boolean answerWithoutStreamUrl(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                             Rendition rendition) {
+        String resource = RequestRouter.resource(msg.uri());
+        if (!HlsPackager.PLAYLIST.equals(resource)) {
+            sendSegment(ctx, HlsPackager.cacheKey(rendition.sessionKey(cameraCode), resource));
+            return true;
+        }
+        HlsPackager packager = STREAM_HUB.findHls(cameraCode, rendition);
+        if (packager != null) {
+            sendPlaylist(ctx, msg, packager);
+            return true;
+        }
+        if (!STREAM_HUB.canStart(cameraCode, rendition)) {
+            sendServiceUnavailableResponse(ctx, RETRY_AFTER_SECONDS);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Playlist of a camera whose session isn't running, it's started
+     *
+     * @param ctx        Channel context
+     * @param msg        Request info
+     * @param cameraCode Camera index code
+     * @param rendition  Requested rendition
+     * @param streamUrl  Streaming address
+     */
+    @Override
+    protected void doChannelRead0(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                  Rendition rendition, String streamUrl) {
+        if (streamUrl == null || streamUrl.isBlank()) {
+            sendBadRequestResponse(ctx);
+            return;
+        }
+        HlsPackager packager = STREAM_HUB.watchHls(cameraCode, rendition, streamUrl, ctx.alloc());
+        if (packager == null) {
+            sendServiceUnavailableResponse(ctx, RETRY_AFTER_SECONDS);
+            return;
+        }
+        sendPlaylist(ctx, msg, packager);
+    }
+
+    private void sendPlaylist(ChannelHandlerContext ctx, FullHttpRequest msg, HlsPackager packager) {
+        long mediaSequence;
+        int part;
+        try {
+            String msnParam = queryParam(msg.uri(), MSN_PARAM);
+            String partParam = queryParam(msg.uri(), PART_PARAM);
+            mediaSequence = msnParam != null ? Long.parseLong(msnParam) : -1;
+            part = partParam != null ? Integer.parseInt(partParam) : -1;
+        } catch (NumberFormatException e) {
+            sendBadRequestResponse(ctx);
+            return;
+        }
+        if (mediaSequence < 0 && part >= 0) {
+            sendBadRequestResponse(ctx);
+            return;
+        }
+
+        // A new session has to open the camera and complete a first segment
+        boolean blocking = mediaSequence >= 0;
+        long timeout = blocking ? packager.getBlockingTimeout()
+                : PROXY_PROPERTIES.getOpenTimeout() + packager.getBlockingTimeout();
+        packager.playlist(mediaSequence, part).orTimeout(timeout, TimeUnit.MILLISECONDS).whenCompleteAsync((playlist, cause) -> {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            if (cause instanceof CompletionException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof TimeoutException) {
+                // A blocking request gets the playlist as it is, the player asks again
+                playlist = blocking ? packager.currentPlaylist() : null;
+                if (playlist == null) {
+                    sendGatewayTimeoutResponse(ctx);
+                    return;
+                }
+            } else if (cause instanceof IllegalArgumentException) {
+                sendBadRequestResponse(ctx);
+                return;
+            } else if (cause != null) {
+                // The camera couldn't be opened, or was lost
+                sendBadGatewayResponse(ctx);
+                return;
+            }
+
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    ByteBufUtil.writeUtf8(ctx.alloc(), playlist));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, PLAYLIST_CONTENT_TYPE);
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            ctx.writeAndFlush(response);
+        }, ctx.executor());
+    }
+
+    private void sendSegment(ChannelHandlerContext ctx, String key) {
+        ByteBuf content = SEGMENT_CACHE.get(key);
+        if (content == null) {
+            sendNotFoundResponse(ctx);
+            return;
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, SEGMENT_CONTENT_TYPE);
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, SEGMENT_CACHE_CONTROL);
+        HttpUtil.setContentLength(response, content.readableBytes());
+        ctx.writeAndFlush(response);
+    }
+}
@@ -0,0 +1,41 @@
+package com.aaron.stream.handler;
+
+import com.aaron.stream.metrics.PrometheusWriter;
+import com.aaron.stream.metrics.ProxyMetrics;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.*;
+
+/**
+ * Serves {@code /metrics} in the Prometheus text format, behind the same Basic authorization as the streams.
+ * Other requests are passed on.
+ */
+@ChannelHandler.Sharable
+public class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    public final static String PATH = "/metrics";
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) {
+        if (!(msg instanceof FullHttpRequest)) {
+            return false;
+        }
+        return RequestRouter.isPath(((FullHttpRequest) msg).uri(), PATH);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+        FullHttpResponse response;
+        if (!AbstractChannelInboundHandler.isValidAuth(msg.headers().get(HttpHeaderNames.AUTHORIZATION))) {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.UNAUTHORIZED);
+            response.headers().set(HttpHeaderNames.WWW_AUTHENTICATE, "Basic realm=\"Restricted\"");
+        } else {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    ByteBufUtil.writeUtf8(ctx.alloc(), ProxyMetrics.scrape()));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, PrometheusWriter.CONTENT_TYPE);
+        }
+        HttpUtil.setContentLength(response, response.content().readableBytes());
+        ctx.writeAndFlush(response);
+    }
+}
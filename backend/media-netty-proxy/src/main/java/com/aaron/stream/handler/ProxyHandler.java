@@ -1,6 +1,7 @@
 package com.aaron.stream.handler;
 
-import io.netty.channel.ChannelFutureListener;
+import com.aaron.stream.session.Rendition;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import org.jetbrains.annotations.NotNull;
@@ -8,13 +9,13 @@ import org.jetbrains.annotations.NotNull;
 /**
  * Processing Proxy
  */
+@ChannelHandler.Sharable
 public class ProxyHandler extends AbstractChannelInboundHandler {
 
     @Override
-    protected void doChannelRead0(ChannelHandlerContext ctx, @NotNull FullHttpRequest msg, String streamUrl) {
-        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.FOUND);
-        response.headers().set(HttpHeaderNames.LOCATION, streamUrl);
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    protected void doChannelRead0(ChannelHandlerContext ctx, @NotNull FullHttpRequest msg, String cameraCode,
+                                  Rendition rendition, String streamUrl) {
+        sendFoundResponse(ctx, streamUrl);
     }
 
 }
@@ -1,47 +1,126 @@
 package com.aaron.stream.handler;
 
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.utils.ProxyInit;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.cors.CorsConfig;
 import io.netty.handler.codec.http.cors.CorsConfigBuilder;
 import io.netty.handler.codec.http.cors.CorsHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
 
+/**
+ * HTTP/1.1 (keep-alive, WebSocket upgrade) and h2c, by upgrade or prior knowledge. Over HTTP/2 every request is a
+ * stream channel with its own pipeline, so one connection carries many streams. Stateless handlers are created once
+ * and shared by every channel, only codecs and handlers holding per-connection state are created per channel.
+ */
 public class ProxyInitializer extends ChannelInitializer<Channel> {
+    private final static ProxyProperties PROXY_PROPERTIES = ProxyInit.getProxyProperties();
     private static final int MAX_CONTENT_LENGTH = 65536;
+    private static final CorsConfig CORS_CONFIG = CorsConfigBuilder.forAnyOrigin()
+            .allowedRequestMethods(
+                    HttpMethod.GET,
+                    HttpMethod.POST,
+                    HttpMethod.PUT,
+                    HttpMethod.DELETE,
+                    HttpMethod.OPTIONS)
+            .allowedRequestHeaders(
+                    HttpHeaderNames.ORIGIN,
+                    HttpHeaderNames.X_REQUESTED_WITH,
+                    HttpHeaderNames.CONTENT_TYPE,
+                    HttpHeaderNames.ACCEPT,
+                    HttpHeaderNames.AUTHORIZATION)
+            .allowNullOrigin()
+            .allowCredentials()
+            .maxAge(3600) // Cache time for preflight requests, in seconds
+            .build();
+
+    private final MetricsHandler metricsHandler = new MetricsHandler();
+    private final SnapshotHandler snapshotHandler = new SnapshotHandler();
+    private final HlsHandler hlsHandler = new HlsHandler();
+    private final ReplayHandler replayHandler = new ReplayHandler();
+    private final VideoStreamHandler videoStreamHandler = new VideoStreamHandler();
+    private final Http1Initializer http1Initializer = new Http1Initializer();
+    private final ChannelInitializer<Channel> http2Initializer = new ChannelInitializer<>() {
+        @Override
+        protected void initChannel(Channel ch) {
+            ch.pipeline().addLast(Http2FrameCodecBuilder.forServer().build(), newHttp2Multiplexer());
+        }
+    };
+    private final ChannelInitializer<Http2StreamChannel> http2StreamInitializer = new ChannelInitializer<>() {
+        @Override
+        protected void initChannel(Http2StreamChannel ch) {
+            ch.config().setWriteBufferWaterMark(new WriteBufferWaterMark(
+                    PROXY_PROPERTIES.getWriteBufferLow(), PROXY_PROPERTIES.getWriteBufferHigh()));
+            ChannelPipeline pipeline = ch.pipeline();
+            pipeline.addLast(new Http2StreamFrameToHttpObjectCodec(true));
+            pipeline.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+            pipeline.addLast(new ChunkedWriteHandler());
+            pipeline.addLast(new CorsHandler(CORS_CONFIG));
+            pipeline.addLast(metricsHandler);
+            pipeline.addLast(snapshotHandler);
+            pipeline.addLast(hlsHandler);
+            pipeline.addLast(replayHandler);
+            pipeline.addLast(videoStreamHandler);
+        }
+    };
 
     @Override
     protected void initChannel(Channel ch) {
+        HttpServerCodec sourceCodec = new HttpServerCodec();
+        HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(sourceCodec, protocol ->
+                AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                        ? new Http2ServerUpgradeCodec(Http2FrameCodecBuilder.forServer().build(), newHttp2Multiplexer())
+                        : null, MAX_CONTENT_LENGTH);
+
         ChannelPipeline pipeline = ch.pipeline();
-        pipeline.addLast(new HttpServerCodec());
-        pipeline.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
-        pipeline.addLast(new ChunkedWriteHandler());
-        pipeline.addLast(new CorsHandler(corsConfig()));
-        pipeline.addLast(new VideoStreamHandler());
+        pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(sourceCodec, upgradeHandler, http2Initializer));
+        pipeline.addLast(http1Initializer);
+    }
+
+    private Http2MultiplexHandler newHttp2Multiplexer() {
+        return new Http2MultiplexHandler(http2StreamInitializer);
     }
 
-    private CorsConfig corsConfig() {
-        return CorsConfigBuilder.forAnyOrigin()
-                .allowedRequestMethods(
-                        HttpMethod.GET,
-                        HttpMethod.POST,
-                        HttpMethod.PUT,
-                        HttpMethod.DELETE,
-                        HttpMethod.OPTIONS)
-                .allowedRequestHeaders(
-                        HttpHeaderNames.ORIGIN,
-                        HttpHeaderNames.X_REQUESTED_WITH,
-                        HttpHeaderNames.CONTENT_TYPE,
-                        HttpHeaderNames.ACCEPT,
-                        HttpHeaderNames.AUTHORIZATION)
-                .allowNullOrigin()
-                .allowCredentials()
-                .maxAge(3600) // Cache time for preflight requests, in seconds
-                .build();
+    /**
+     * Reached by the first request of a connection that stays on HTTP/1.1, installs the HTTP/1.1 handlers
+     */
+    @ChannelHandler.Sharable
+    private class Http1Initializer extends SimpleChannelInboundHandler<HttpMessage> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpMessage msg) {
+            ChannelPipeline pipeline = ctx.pipeline();
+            pipeline.addAfter(ctx.name(), null, videoStreamHandler);
+            pipeline.addAfter(ctx.name(), null, replayHandler);
+            pipeline.addAfter(ctx.name(), null, hlsHandler);
+            pipeline.addAfter(ctx.name(), null, snapshotHandler);
+            pipeline.addAfter(ctx.name(), null, metricsHandler);
+            pipeline.addAfter(ctx.name(), null, new CorsHandler(CORS_CONFIG));
+            pipeline.addAfter(ctx.name(), null, new ChunkedWriteHandler());
+            pipeline.addAfter(ctx.name(), null, new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+            pipeline.replace(this, null, new HttpServerKeepAliveHandler());
+            ctx.fireChannelRead(ReferenceCountUtil.retain(msg));
+        }
     }
 }
@@ -0,0 +1,187 @@
+package com.aaron.stream.handler;
+
+import com.aaron.stream.metrics.ProxyMetrics;
+import com.aaron.stream.record.RecordingStore;
+import com.aaron.stream.record.Replay;
+import com.aaron.stream.session.Rendition;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Replay of a camera's recording as HTTP-FLV: {@code /{cameraCode}?start=...} with the wall clock time in
+ * milliseconds since the epoch, or negative seconds before now (e.g. {@code -300} for the last 5 minutes). The
+ * stream starts at the key frame at or before that time and ends where the recording is at the time of the
+ * request. Other requests are passed on.
+ * <p>
+ * Over HTTP/1.1 the segment files are sent with file regions, zero-copy ({@code sendfile}) on the native
+ * transport. HTTP/2 frames the body itself, the files are read in chunks then.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+public class ReplayHandler extends AbstractChannelInboundHandler {
+    private final static String START_PARAM = "start";
+    private final static String CONTENT_TYPE = "video/x-flv";
+    private final static int CHUNK_SIZE = 64 * 1024;
+
+    private final static RecordingStore RECORDING_STORE = RecordingStore.getInstance();
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) {
+        if (!(msg instanceof FullHttpRequest)) {
+            return false;
+        }
+        String uri = ((FullHttpRequest) msg).uri();
+        return RequestRouter.resource(uri) == null && queryParam(uri, START_PARAM) != null;
+    }
+
+    /**
+     * The recordings are on the camera's owner, a replay isn't relayed
+     */
+    @Override
+    protected boolean redirectsToOwner(FullHttpRequest msg) {
+        return true;
+    }
+
+    @Override
+    protected boolean answerWithoutStreamUrl(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                             Rendition rendition) {
+        long start;
+        try {
+            start = Long.parseLong(queryParam(msg.uri(), START_PARAM));
+        } catch (NumberFormatException e) {
+            sendBadRequestResponse(ctx);
+            return true;
+        }
+        if (start < 0) {
+            start = System.currentTimeMillis() + start * 1000;
+        }
+        if (isWebSocketUpgrade(msg)) {
+            sendBadRequestResponse(ctx); // Replays are HTTP-FLV only
+            return true;
+        }
+
+        Replay replay;
+        try {
+            replay = RECORDING_STORE.replay(rendition.sessionKey(cameraCode), start);
+        } catch (IOException e) {
+            log.warn("Error open replay of {}：{}", rendition.sessionKey(cameraCode), e.getMessage());
+            sendErrorResponse(ctx);
+            return true;
+        }
+        if (replay == null) {
+            sendNotFoundResponse(ctx);
+            return true;
+        }
+        ProxyMetrics.REPLAYS.increment();
+        sendReplay(ctx, replay);
+        return true;
+    }
+
+    /**
+     * Not reached, a replay never needs the stream url
+     */
+    @Override
+    protected void doChannelRead0(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                  Rendition rendition, String streamUrl) {
+        sendNotFoundResponse(ctx);
+    }
+
+    private void sendReplay(ChannelHandlerContext ctx, Replay replay) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+        HttpUtil.setContentLength(response, replay.getLength());
+
+        if (ctx.channel() instanceof Http2StreamChannel) {
+            HttpChunkedInput input;
+            try {
+                input = new HttpChunkedInput(new SectionsInput(replay.getSections()));
+            } catch (IOException e) {
+                replay.close();
+                log.warn("Error read replay：{}", e.getMessage());
+                sendErrorResponse(ctx);
+                return;
+            }
+            ctx.write(response);
+            ctx.writeAndFlush(input);
+            return;
+        }
+
+        ctx.write(response);
+        for (Replay.Section section : replay.getSections()) {
+            // The region closes the section's file channel once it's sent
+            ctx.write(new DefaultFileRegion(section.getChannel(), section.getPosition(), section.getLength()));
+        }
+        ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    /**
+     * The sections one after the other, read in chunks
+     */
+    private static final class SectionsInput implements ChunkedInput<ByteBuf> {
+        private final ChunkedNioFile[] files;
+        private final long length;
+        private int current;
+
+        SectionsInput(List<Replay.Section> sections) throws IOException {
+            files = new ChunkedNioFile[sections.size()];
+            long length = 0;
+            for (int i = 0; i < files.length; i++) {
+                Replay.Section section = sections.get(i);
+                files[i] = new ChunkedNioFile(section.getChannel(), section.getPosition(), section.getLength(), CHUNK_SIZE);
+                length += section.getLength();
+            }
+            this.length = length;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            while (current < files.length && files[current].isEndOfInput()) {
+                current++;
+            }
+            return current == files.length;
+        }
+
+        @Override
+        public void close() throws Exception {
+            for (ChunkedNioFile file : files) {
+                file.close();
+            }
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+            return isEndOfInput() ? null : files[current].readChunk(allocator);
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long progress() {
+            long progress = 0;
+            for (ChunkedNioFile file : files) {
+                progress += file.progress();
+            }
+            return progress;
+        }
+    }
+}
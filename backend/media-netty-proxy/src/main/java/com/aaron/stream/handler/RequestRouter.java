@@ -0,0 +1,67 @@
+package com.aaron.stream.handler;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Routes a request uri by scanning it in place, the query string is ignored and nothing but the camera code (and
+ * the resource under it) is allocated
+ */
+final class RequestRouter {
+    private RequestRouter() {
+    }
+
+    /**
+     * Whether the uri path is exactly {@code path}
+     *
+     * @param uri  request uri
+     * @param path path, with the leading slash
+     * @return true or false
+     */
+    static boolean isPath(@NotNull String uri, @NotNull String path) {
+        return uri.startsWith(path) && pathEnd(uri) == path.length();
+    }
+
+    /**
+     * Camera code, the first segment of the uri path, e.g. {@code /a8b2c6d0?token=...} and
+     * {@code /a8b2c6d0/index.m3u8} are {@code a8b2c6d0}
+     *
+     * @param uri request uri
+     * @return camera code, null when the path is empty
+     */
+    static String cameraCode(@NotNull String uri) {
+        int start = codeStart(uri);
+        int end = codeEnd(uri, start, pathEnd(uri));
+        return end > start ? uri.substring(start, end) : null;
+    }
+
+    /**
+     * Resource of the camera, the rest of the uri path, e.g. {@code /a8b2c6d0/index.m3u8} is {@code index.m3u8}
+     *
+     * @param uri request uri
+     * @return resource, null when the path is the camera code alone
+     */
+    static String resource(@NotNull String uri) {
+        int pathEnd = pathEnd(uri);
+        int start = codeEnd(uri, codeStart(uri), pathEnd) + 1;
+        return start < pathEnd ? uri.substring(start, pathEnd) : null;
+    }
+
+    private static int codeStart(String uri) {
+        return !uri.isEmpty() && uri.charAt(0) == '/' ? 1 : 0;
+    }
+
+    private static int codeEnd(String uri, int start, int pathEnd) {
+        int slash = uri.indexOf('/', start);
+        return slash >= 0 && slash < pathEnd ? slash : pathEnd;
+    }
+
+    private static int pathEnd(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return uri.length();
+    }
+}
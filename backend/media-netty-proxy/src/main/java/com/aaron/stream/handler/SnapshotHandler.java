@@ -0,0 +1,133 @@
+package com.aaron.stream.handler;
+
+import com.aaron.stream.session.Rendition;
+import com.aaron.stream.snapshot.SnapshotService;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * JPEG snapshot of a camera, for thumbnails: {@code /snapshot/{cameraCode}}, sized with {@code ?width=} and/or
+ * {@code ?height=} (the aspect ratio is kept if only one is given). Other requests are passed on.
+ * <p>
+ * A camera being watched is answered from its session without looking the stream url up.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+public class SnapshotHandler extends AbstractChannelInboundHandler {
+    private final static String PATH_PREFIX = "/snapshot/";
+    private final static String WIDTH_PARAM = "width";
+    private final static String HEIGHT_PARAM = "height";
+    private final static int MAX_SIZE = 1920;
+    private final static int RETRY_AFTER_SECONDS = 1;
+    private final static String CONTENT_TYPE = "image/jpeg";
+
+    private final static SnapshotService SNAPSHOTS = SnapshotService.getInstance();
+    private final static String CACHE_CONTROL = "private, max-age=" + TimeUnit.MILLISECONDS.toSeconds(SNAPSHOTS.getTtlMillis());
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) {
+        return msg instanceof FullHttpRequest && ((FullHttpRequest) msg).uri().startsWith(PATH_PREFIX);
+    }
+
+    /**
+     * The camera code follows the prefix
+     */
+    @Override
+    protected String cameraCode(String uri) {
+        String resource = RequestRouter.resource(uri);
+        return resource != null && resource.indexOf('/') < 0 ? resource : null;
+    }
+
+    @Override
+    protected boolean answerWithoutStreamUrl(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                             Rendition rendition) {
+        int width = sizeParam(msg.uri(), WIDTH_PARAM);
+        int height = sizeParam(msg.uri(), HEIGHT_PARAM);
+        if (width < 0 || height < 0) {
+            sendBadRequestResponse(ctx);
+            return true;
+        }
+        CompletableFuture<byte[]> snapshot = SNAPSHOTS.find(cameraCode, rendition, width, height);
+        if (snapshot == null) {
+            return false;
+        }
+        sendSnapshot(ctx, snapshot);
+        return true;
+    }
+
+    /**
+     * The camera has no session, it's opened for one key frame
+     *
+     * @param ctx        Channel context
+     * @param msg        Request info
+     * @param cameraCode Camera index code
+     * @param rendition  Requested rendition
+     * @param streamUrl  Streaming address
+     */
+    @Override
+    protected void doChannelRead0(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                  Rendition rendition, String streamUrl) {
+        if (streamUrl == null || streamUrl.isBlank()) {
+            sendBadRequestResponse(ctx);
+            return;
+        }
+        sendSnapshot(ctx, SNAPSHOTS.grab(cameraCode, rendition, streamUrl,
+                sizeParam(msg.uri(), WIDTH_PARAM), sizeParam(msg.uri(), HEIGHT_PARAM)));
+    }
+
+    private void sendSnapshot(ChannelHandlerContext ctx, CompletableFuture<byte[]> snapshot) {
+        snapshot.orTimeout(PROXY_PROPERTIES.getOpenTimeout(), TimeUnit.MILLISECONDS).whenCompleteAsync((jpeg, cause) -> {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            if (cause instanceof CompletionException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof RejectedExecutionException) {
+                sendServiceUnavailableResponse(ctx, RETRY_AFTER_SECONDS);
+                return;
+            }
+            if (cause instanceof TimeoutException) {
+                sendGatewayTimeoutResponse(ctx);
+                return;
+            }
+            if (cause != null) {
+                // The camera couldn't be opened or decoded
+                sendBadGatewayResponse(ctx);
+                return;
+            }
+
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.wrappedBuffer(jpeg));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, CACHE_CONTROL);
+            HttpUtil.setContentLength(response, jpeg.length);
+            ctx.writeAndFlush(response);
+        }, ctx.executor());
+    }
+
+    /**
+     * @return size, 0 if not given, -1 if invalid
+     */
+    private static int sizeParam(String uri, String name) {
+        String value = queryParam(uri, name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int size = Integer.parseInt(value);
+            return size > 0 && size <= MAX_SIZE ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -1,30 +1,39 @@
 package com.aaron.stream.handler;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
+import com.aaron.stream.metrics.ProxyMetrics;
+import com.aaron.stream.session.FlvTransport;
+import com.aaron.stream.session.HttpFlvTransport;
+import com.aaron.stream.session.Rendition;
+import com.aaron.stream.session.StreamHub;
+import com.aaron.stream.session.WebSocketFlvTransport;
+import com.aaron.stream.utils.KeyedPermits;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import lombok.extern.slf4j.Slf4j;
-import org.bytedeco.ffmpeg.global.avcodec;
-import org.bytedeco.javacv.*;
-
-import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
- * Real-time stream processing
+ * Real-time stream processing, as HTTP-FLV or as WebSocket-FLV when the request is a WebSocket upgrade.
+ * <p>
+ * A viewer of a running session joins it without looking the stream url up, and so does one that is over budget
+ * (it gets another rendition's session then). Requests that would be rejected anyway are answered at once: 429 when
+ * the credential is at its stream limit, 503 when no session can be started for the camera, or the camera's stream
+ * is known to need a transcode and the transcode budget is used up.
  */
 @Slf4j
+@ChannelHandler.Sharable
 public class VideoStreamHandler extends AbstractChannelInboundHandler {
-    private String defaultStreamUrl;
+    private final static int RETRY_AFTER_SECONDS = 5;
+
+    private final String defaultStreamUrl;
 
-    private final static ExecutorService executorService = Executors.newFixedThreadPool(30);
+    private final static StreamHub STREAM_HUB = StreamHub.getInstance();
+    private final static KeyedPermits CREDENTIAL_STREAMS = new KeyedPermits(PROXY_PROPERTIES.getMaxStreamsPerCredential());
 
     public VideoStreamHandler() {
+        this(null);
     }
 
     /**
@@ -36,19 +45,45 @@ public class VideoStreamHandler extends AbstractChannelInboundHandler {
         this.defaultStreamUrl = defaultStreamUrl;
     }
 
+    @Override
+    protected boolean answerWithoutStreamUrl(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                             Rendition rendition) {
+        String credential = streamCredential(msg);
+        if (!acquireStream(ctx, credential)) {
+            return true;
+        }
+        FlvTransport transport = transport(ctx, msg);
+        if (transport == null) {
+            releaseStream(credential);
+            return true;
+        }
+        if (STREAM_HUB.subscribeRunning(cameraCode, rendition, ctx.channel(), transport)) {
+            releaseStreamOnClose(ctx, credential);
+            return true;
+        }
+        releaseStream(credential);
+
+        if (!STREAM_HUB.canStart(cameraCode, rendition)) {
+            sendServiceUnavailableResponse(ctx, RETRY_AFTER_SECONDS);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Processing video stream
      *
-     * @param ctx       Channel context
-     * @param msg       Request info
-     * @param streamUrl Streaming address
-     * @throws Exception error
+     * @param ctx        Channel context
+     * @param msg        Request info
+     * @param cameraCode Camera index code, viewers of the same camera and rendition share one stream session
+     * @param rendition  Requested rendition
+     * @param streamUrl  Streaming address
      */
     @Override
-    protected void doChannelRead0(ChannelHandlerContext ctx, FullHttpRequest msg, String streamUrl) throws IOException {
+    protected void doChannelRead0(ChannelHandlerContext ctx, FullHttpRequest msg, String cameraCode,
+                                  Rendition rendition, String streamUrl) {
         if ((streamUrl == null || streamUrl.isBlank()) && (defaultStreamUrl == null || defaultStreamUrl.isBlank())) {
-            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST);
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            sendBadRequestResponse(ctx);
             return;
         }
 
@@ -56,130 +91,74 @@ public class VideoStreamHandler extends AbstractChannelInboundHandler {
             streamUrl = this.defaultStreamUrl;
         }
 
-        FFmpegLogCallback.set();
-
-        // Response initialization
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        HttpUtil.setTransferEncodingChunked(response, true);
-        ctx.write(response);
-
-        // Set up the grabber and recorder
-        FFmpegFrameGrabber grabber = new LiveGrabber(streamUrl);
-        grabber.start();
-        executorService.execute(() -> {
-            // Start grab and encode frames
-            try (FFmpegFrameRecorder recorder = new LiveRecorder(
-                    new FrameToByteBufOutputStream(ctx),
-                    grabber.getImageWidth(),
-                    grabber.getImageHeight(),
-                    grabber.getAudioChannels())) {
-                recorder.start();
-
-                Frame frame;
-                while ((frame = grabber.grab()) != null && ctx.channel().isActive()) {
-                    recorder.setTimestamp(grabber.getTimestamp());
-                    recorder.record(frame);
-                }
-            } catch (IOException e) {
-                log.error("Error process recorder：", e);
-                sendErrorResponse(ctx);
-            } finally {
-                ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(ChannelFutureListener.CLOSE);
-                try {
-                    grabber.stop();
-                } catch (FrameGrabber.Exception e) {
-                    log.error("Error stop grabber：", e);
-                }
-            }
-        });
+        String credential = streamCredential(msg);
+        if (!acquireStream(ctx, credential)) {
+            return;
+        }
+        FlvTransport transport = transport(ctx, msg);
+        if (transport == null) {
+            releaseStream(credential);
+            return;
+        }
+
+        // Join the camera's stream session, the FLV header and last GOP are replayed first
+        if (!STREAM_HUB.subscribe(cameraCode, rendition, streamUrl, ctx.channel(), transport)) {
+            releaseStream(credential);
+            sendServiceUnavailableResponse(ctx, RETRY_AFTER_SECONDS);
+            return;
+        }
+        releaseStreamOnClose(ctx, credential);
     }
 
     /**
-     * Output Frame stream
+     * Framing of the stream, WebSocket-FLV for an upgrade request
+     *
+     * @return transport, null if the WebSocket version is unsupported, the response is sent then
      */
-    static class FrameToByteBufOutputStream extends ByteArrayOutputStream {
-        private final ChannelHandlerContext ctx;
-
-        public FrameToByteBufOutputStream(ChannelHandlerContext ctx) {
-            this.ctx = ctx;
+    private static FlvTransport transport(ChannelHandlerContext ctx, FullHttpRequest msg) {
+        if (!isWebSocketUpgrade(msg)) {
+            return HttpFlvTransport.INSTANCE;
         }
-
-        public void write(byte[] b, int off, int len) {
-            ByteBuf buffer = Unpooled.wrappedBuffer(b, off, len);
-            ctx.writeAndFlush(new DefaultHttpContent(buffer));
+        String location = "ws://" + msg.headers().get(HttpHeaderNames.HOST) + msg.uri();
+        WebSocketServerHandshaker handshaker = new WebSocketServerHandshakerFactory(location, null, true).newHandshaker(msg);
+        if (handshaker == null) {
+            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+            return null;
         }
+        return new WebSocketFlvTransport(handshaker, msg);
     }
 
     /**
-     * FFmpegFrameGrabber Initial
+     * Credential the stream counts for, none for another node's relay: it carries the streams of many viewers
      */
-    static class LiveGrabber extends FFmpegFrameGrabber {
-        private final static String BUFF_SIZE = "8096000";
+    private static String streamCredential(FullHttpRequest msg) {
+        return CLUSTER.isRelayed(msg) ? null : credential(msg);
+    }
 
-        public LiveGrabber(String filename) {
-            super(filename);
-            initLiveGrabber();
+    /**
+     * Count a stream of the credential
+     *
+     * @return false if the credential is at its stream limit, the 429 is sent then
+     */
+    private boolean acquireStream(ChannelHandlerContext ctx, String credential) {
+        if (credential == null || CREDENTIAL_STREAMS.tryAcquire(credential)) {
+            return true;
         }
+        ProxyMetrics.STREAMS_THROTTLED.increment();
+        sendTooManyRequestsResponse(ctx, RETRY_AFTER_SECONDS);
+        return false;
+    }
 
-        void initLiveGrabber() {
-            super.setVideoOption("vcodec", "copy");
-            super.setOption("buffer_size", BUFF_SIZE); // Set buffer size to improve video quality and reduce stuttering and artifacting
-            super.setOption("rtsp_transport", "tcp");
+    private static void releaseStream(String credential) {
+        if (credential != null) {
+            CREDENTIAL_STREAMS.release(credential);
         }
     }
 
     /**
-     * FFmpegFrameRecorder Initial
+     * The stream ends with its channel, the session closes it
      */
-    static class LiveRecorder extends FFmpegFrameRecorder {
-        private static final int BITRATE = 1000000; // Reduce bitrate to decrease CPU load, e.g., 1000 kbps
-        private static final int FRAME_RATE = 30; // Adjust frame rate as needed, fps
-        private static final int GOP_SIZE = 30; // Set GOP size to one key frame every two seconds
-        private static final String FORMAT_FLV = "flv"; // Set encapsulation format
-
-        private static final int AUDIO_BITRATE = 192000; // Set bitrate, e.g., 192 kbps
-        private static final int SAMPLE_RATE = 44100; // Set sample rate
-        private static final int AUDIO_CHANNELS = 2; // Set the number of audio channels, here set to stereo
-
-        private static final Map<String, String> VIDEO_OPTION = new HashMap<>() {{
-            put("tune", "zerolatency"); // Reduce startup latency, see https://trac.ffmpeg.org/wiki/StreamingGuide)
-            put("preset", "ultrafast"); // 'ultrafast' has the lowest CPU usage
-            put("crf", "24"); // Constant Rate Factor (see: https://trac.ffmpeg.org/wiki/Encode/H.264)
-            put("threads", "8");
-            // put("video_size", "640x480"); // Set resolution
-        }};
-
-        private static final Map<String, String> AUDIO_OPTION = new HashMap<>() {{
-            put("crf", "0");
-        }};
-
-        public LiveRecorder(OutputStream outputStream, int imageWidth, int imageHeight, int audioChannels) {
-            super(outputStream, imageWidth, imageHeight, audioChannels);
-            initLiveRecorder();
-        }
-
-        void initLiveRecorder() {
-            // Setting video
-            for (Map.Entry<String, String> entry : VIDEO_OPTION.entrySet()) {
-                super.setVideoOption(entry.getKey(), entry.getValue());
-            }
-            super.setVideoBitrate(BITRATE);
-            super.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-            super.setFormat(FORMAT_FLV);
-            super.setFrameRate(FRAME_RATE);
-            super.setGopSize(GOP_SIZE);
-            // super.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
-            // super.setOption("color_range", "jpeg"); // Use "jpeg" for full range. Use "mpeg" for limited range.
-
-            // Setting audio
-            for (Map.Entry<String, String> entry : AUDIO_OPTION.entrySet()) {
-                super.setAudioOption(entry.getKey(), entry.getValue());
-            }
-            super.setAudioQuality(0);
-            super.setAudioBitrate(AUDIO_BITRATE);
-            super.setSampleRate(SAMPLE_RATE);
-            super.setAudioChannels(AUDIO_CHANNELS);
-            super.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
-        }
+    private static void releaseStreamOnClose(ChannelHandlerContext ctx, String credential) {
+        ctx.channel().closeFuture().addListener(future -> releaseStream(credential));
     }
 }
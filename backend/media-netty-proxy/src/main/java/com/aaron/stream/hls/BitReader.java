@@ -0,0 +1,55 @@
+package com.aaron.stream.hls;
+
+/**
+ * Big-endian bit reader over a byte array, with the Exp-Golomb codes of H.264 parameter sets
+ */
+final class BitReader {
+    private final byte[] data;
+    private int position; // In bits
+
+    BitReader(byte[] data) {
+        this.data = data;
+    }
+
+    boolean readBit() {
+        if (position >= data.length * 8) {
+            throw new IllegalArgumentException("Read past the end of " + data.length + " bytes");
+        }
+        int bit = (data[position >> 3] >> (7 - (position & 7))) & 1;
+        position++;
+        return bit == 1;
+    }
+
+    int readBits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 1) | (readBit() ? 1 : 0);
+        }
+        return value;
+    }
+
+    void skipBits(int count) {
+        position += count;
+    }
+
+    /**
+     * Unsigned Exp-Golomb code, ue(v)
+     */
+    int readUe() {
+        int leadingZeros = 0;
+        while (!readBit()) {
+            if (++leadingZeros > 31) {
+                throw new IllegalArgumentException("Invalid Exp-Golomb code");
+            }
+        }
+        return (1 << leadingZeros) - 1 + readBits(leadingZeros);
+    }
+
+    /**
+     * Signed Exp-Golomb code, se(v)
+     */
+    int readSe() {
+        int code = readUe();
+        return (code & 1) == 1 ? (code + 1) / 2 : -(code / 2);
+    }
+}
@@ -0,0 +1,287 @@
+package com.aaron.stream.hls;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the ISO BMFF boxes of fragmented MP4 (ISO/IEC 14496-12): the init segment describing the tracks, and the
+ * moof/mdat fragments carrying their samples
+ */
+final class Fmp4Writer {
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int MFHD_SIZE = 16;
+    private static final int TRAF_SIZE = BOX_HEADER_SIZE + 16 + 20 + 20; // traf, tfhd, tfdt v1 and trun before its samples
+    private static final int TRUN_SAMPLE_SIZE = 16;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    // data-offset, sample-duration, sample-size, sample-flags and sample-composition-time-offset present
+    private static final int TRUN_FLAGS = 0x000f01;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int INIT_SEGMENT_CAPACITY = 1024;
+    private static final int[] MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private Fmp4Writer() {
+    }
+
+    /**
+     * ftyp and moov, with the sample descriptions and an empty sample table per track
+     *
+     * @param allocator buffer allocator
+     * @param tracks    tracks, in track id order
+     * @return init segment
+     */
+    static ByteBuf initSegment(ByteBufAllocator allocator, List<FragmentTrack> tracks) {
+        ByteBuf out = allocator.directBuffer(INIT_SEGMENT_CAPACITY);
+        int ftyp = begin(out, "ftyp");
+        writeType(out, "isom");
+        out.writeInt(0x200);
+        writeType(out, "isom");
+        writeType(out, "iso6");
+        writeType(out, "mp41");
+        end(out, ftyp);
+
+        int moov = begin(out, "moov");
+        int mvhd = beginFull(out, "mvhd", 0, 0);
+        out.writeInt(0); // Creation time
+        out.writeInt(0); // Modification time
+        out.writeInt(MOVIE_TIMESCALE);
+        out.writeInt(0); // Duration, unknown for a live stream
+        out.writeInt(0x00010000); // Rate 1.0
+        out.writeShort(0x0100); // Volume 1.0
+        out.writeZero(2 + 8);
+        writeMatrix(out);
+        out.writeZero(24);
+        out.writeInt(tracks.get(tracks.size() - 1).id() + 1); // Next track id
+        end(out, mvhd);
+        for (FragmentTrack track : tracks) {
+            writeTrack(out, track);
+        }
+        int mvex = begin(out, "mvex");
+        for (FragmentTrack track : tracks) {
+            int trex = beginFull(out, "trex", 0, 0);
+            out.writeInt(track.id());
+            out.writeInt(1); // Sample description index
+            out.writeInt(0); // Default duration, size and flags, every sample has its own
+            out.writeInt(0);
+            out.writeInt(0);
+            end(out, trex);
+        }
+        end(out, mvex);
+        end(out, moov);
+        return out;
+    }
+
+    private static void writeTrack(ByteBuf out, FragmentTrack track) {
+        int trak = begin(out, "trak");
+        int tkhd = beginFull(out, "tkhd", 0, 0x000003); // Enabled, in movie
+        out.writeInt(0); // Creation time
+        out.writeInt(0); // Modification time
+        out.writeInt(track.id());
+        out.writeInt(0);
+        out.writeInt(0); // Duration
+        out.writeZero(8);
+        out.writeShort(0); // Layer
+        out.writeShort(0); // Alternate group
+        out.writeShort(track.isVideo() ? 0 : 0x0100); // Volume
+        out.writeShort(0);
+        writeMatrix(out);
+        out.writeInt(track.width() << 16);
+        out.writeInt(track.height() << 16);
+        end(out, tkhd);
+
+        int mdia = begin(out, "mdia");
+        int mdhd = beginFull(out, "mdhd", 0, 0);
+        out.writeInt(0); // Creation time
+        out.writeInt(0); // Modification time
+        out.writeInt(track.timescale());
+        out.writeInt(0); // Duration
+        out.writeShort(0x55c4); // Language "und"
+        out.writeShort(0);
+        end(out, mdhd);
+        int hdlr = beginFull(out, "hdlr", 0, 0);
+        out.writeInt(0);
+        writeType(out, track.isVideo() ? "vide" : "soun");
+        out.writeZero(12);
+        out.writeCharSequence(track.isVideo() ? "VideoHandler" : "SoundHandler", StandardCharsets.US_ASCII);
+        out.writeByte(0);
+        end(out, hdlr);
+
+        int minf = begin(out, "minf");
+        if (track.isVideo()) {
+            int vmhd = beginFull(out, "vmhd", 0, 1);
+            out.writeZero(8); // Graphics mode, opcolor
+            end(out, vmhd);
+        } else {
+            int smhd = beginFull(out, "smhd", 0, 0);
+            out.writeZero(4); // Balance
+            end(out, smhd);
+        }
+        int dinf = begin(out, "dinf");
+        int dref = beginFull(out, "dref", 0, 0);
+        out.writeInt(1);
+        end(out, beginFull(out, "url ", 0, 1)); // Media in the same file
+        end(out, dref);
+        end(out, dinf);
+
+        int stbl = begin(out, "stbl");
+        int stsd = beginFull(out, "stsd", 0, 0);
+        out.writeInt(1);
+        if (track.isVideo()) {
+            writeAvcSampleEntry(out, track);
+        } else {
+            writeAacSampleEntry(out, track);
+        }
+        end(out, stsd);
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = beginFull(out, type, 0, 0);
+            out.writeInt(0); // No samples, they are in the fragments
+            end(out, box);
+        }
+        int stsz = beginFull(out, "stsz", 0, 0);
+        out.writeInt(0);
+        out.writeInt(0);
+        end(out, stsz);
+        end(out, stbl);
+        end(out, minf);
+        end(out, mdia);
+        end(out, trak);
+    }
+
+    private static void writeAvcSampleEntry(ByteBuf out, FragmentTrack track) {
+        int avc1 = begin(out, "avc1");
+        out.writeZero(6);
+        out.writeShort(1); // Data reference index
+        out.writeZero(16);
+        out.writeShort(track.width());
+        out.writeShort(track.height());
+        out.writeInt(0x00480000); // 72 dpi
+        out.writeInt(0x00480000);
+        out.writeInt(0);
+        out.writeShort(1); // Frame count
+        out.writeZero(32); // Compressor name
+        out.writeShort(0x0018); // Depth
+        out.writeShort(-1);
+        int avcC = begin(out, "avcC");
+        out.writeBytes(track.config());
+        end(out, avcC);
+        end(out, avc1);
+    }
+
+    private static void writeAacSampleEntry(ByteBuf out, FragmentTrack track) {
+        int mp4a = begin(out, "mp4a");
+        out.writeZero(6);
+        out.writeShort(1); // Data reference index
+        out.writeZero(8);
+        out.writeShort(track.channels());
+        out.writeShort(16); // Sample size
+        out.writeZero(4);
+        out.writeInt(track.timescale() < 0x10000 ? track.timescale() << 16 : 0);
+
+        byte[] config = track.config();
+        int decoderConfigLength = 13 + 2 + config.length;
+        int esLength = 3 + 2 + decoderConfigLength + 3;
+        int esds = beginFull(out, "esds", 0, 0);
+        out.writeByte(0x03); // ES_Descriptor
+        out.writeByte(esLength);
+        out.writeShort(0); // ES_ID
+        out.writeByte(0);
+        out.writeByte(0x04); // DecoderConfigDescriptor
+        out.writeByte(decoderConfigLength);
+        out.writeByte(0x40); // MPEG-4 audio
+        out.writeByte(0x15); // Audio stream
+        out.writeMedium(0); // Buffer size
+        out.writeInt(0); // Max bitrate
+        out.writeInt(0); // Average bitrate
+        out.writeByte(0x05); // DecoderSpecificInfo
+        out.writeByte(config.length);
+        out.writeBytes(config);
+        out.writeByte(0x06); // SLConfigDescriptor
+        out.writeByte(1);
+        out.writeByte(0x02);
+        end(out, esds);
+        end(out, mp4a);
+    }
+
+    /**
+     * moof with one traf per track, then the mdat with the samples of every track
+     *
+     * @param allocator buffer allocator
+     * @param sequence  fragment sequence number, from 1
+     * @param tracks    tracks holding samples
+     * @return fragment
+     */
+    static ByteBuf fragment(ByteBufAllocator allocator, int sequence, List<FragmentTrack> tracks) {
+        int moofSize = BOX_HEADER_SIZE + MFHD_SIZE;
+        int dataSize = 0;
+        for (FragmentTrack track : tracks) {
+            moofSize += TRAF_SIZE + TRUN_SAMPLE_SIZE * track.count();
+            dataSize += track.data().readableBytes();
+        }
+        ByteBuf out = allocator.directBuffer(moofSize + BOX_HEADER_SIZE + dataSize);
+
+        int moof = begin(out, "moof");
+        int mfhd = beginFull(out, "mfhd", 0, 0);
+        out.writeInt(sequence);
+        end(out, mfhd);
+        int dataOffset = moofSize + BOX_HEADER_SIZE; // From the start of the moof
+        for (FragmentTrack track : tracks) {
+            int traf = begin(out, "traf");
+            int tfhd = beginFull(out, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            out.writeInt(track.id());
+            end(out, tfhd);
+            int tfdt = beginFull(out, "tfdt", 1, 0);
+            out.writeLong(track.baseDecodeTime());
+            end(out, tfdt);
+            int trun = beginFull(out, "trun", 1, TRUN_FLAGS); // Version 1, signed composition offsets
+            out.writeInt(track.count());
+            out.writeInt(dataOffset);
+            for (int i = 0; i < track.count(); i++) {
+                out.writeInt(track.duration(i));
+                out.writeInt(track.size(i));
+                out.writeInt(track.flags(i));
+                out.writeInt(track.compositionOffset(i));
+            }
+            end(out, trun);
+            end(out, traf);
+            dataOffset += track.data().readableBytes();
+        }
+        end(out, moof);
+
+        out.writeInt(BOX_HEADER_SIZE + dataSize);
+        writeType(out, "mdat");
+        for (FragmentTrack track : tracks) {
+            ByteBuf data = track.data();
+            out.writeBytes(data, data.readerIndex(), data.readableBytes());
+        }
+        return out;
+    }
+
+    private static int begin(ByteBuf out, String type) {
+        int start = out.writerIndex();
+        out.writeInt(0); // Size, set by end()
+        writeType(out, type);
+        return start;
+    }
+
+    private static int beginFull(ByteBuf out, String type, int version, int flags) {
+        int start = begin(out, type);
+        out.writeInt(version << 24 | flags);
+        return start;
+    }
+
+    private static void end(ByteBuf out, int start) {
+        out.setInt(start, out.writerIndex() - start);
+    }
+
+    private static void writeType(ByteBuf out, String type) {
+        out.writeCharSequence(type, StandardCharsets.US_ASCII);
+    }
+
+    private static void writeMatrix(ByteBuf out) {
+        for (int value : MATRIX) {
+            out.writeInt(value);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.aaron.stream.hls;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+
+/**
+ * One track of an fMP4 init segment (H.264 or AAC, from the FLV sequence header) and the samples gathered for its
+ * next fragment. The sample tables and the data buffer are reused from one fragment to the next.
+ * <p>
+ * Not thread safe.
+ */
+@Slf4j
+final class FragmentTrack {
+    static final int VIDEO_TIMESCALE = 90000;
+    static final int SAMPLE_SYNC = 0x02000000; // sample_depends_on 2: decodable alone
+    static final int SAMPLE_NON_SYNC = 0x01010000; // sample_depends_on 1, sample_is_non_sync_sample
+
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int MAX_AUDIO_CONFIG_SIZE = 64; // Keeps the esds descriptor lengths on one byte
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    private static final int INITIAL_SAMPLES = 64;
+
+    private final int id;
+    private final boolean video;
+    private final byte[] config; // avcC or AudioSpecificConfig
+    private final int timescale;
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final ByteBufAllocator allocator;
+
+    // Samples of the next fragment
+    private ByteBuf data;
+    private int count;
+    private int[] durations = new int[INITIAL_SAMPLES];
+    private int[] sizes = new int[INITIAL_SAMPLES];
+    private int[] flags = new int[INITIAL_SAMPLES];
+    private int[] compositionOffsets = new int[INITIAL_SAMPLES];
+    private long baseDecodeTime;
+    private long duration; // Of the samples whose duration is known
+    private long lastDecodeTime = -1; // Kept from one fragment to the next
+    private int lastDuration;
+
+    private FragmentTrack(int id, boolean video, byte[] config, int timescale, int width, int height, int channels,
+                          ByteBufAllocator allocator) {
+        this.id = id;
+        this.video = video;
+        this.config = config;
+        this.timescale = timescale;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.allocator = allocator;
+    }
+
+    /**
+     * @param id        track id
+     * @param avcConfig AVCDecoderConfigurationRecord, the body of the FLV sequence header
+     * @param allocator allocator of the sample data
+     * @return H.264 track, 90 kHz
+     */
+    static FragmentTrack video(int id, byte[] avcConfig, ByteBufAllocator allocator) {
+        int width = 0;
+        int height = 0;
+        try {
+            int[] size = parseSpsSize(avcConfig);
+            width = size[0];
+            height = size[1];
+        } catch (IllegalArgumentException e) {
+            // The players read the size from the SPS too, the sample entry's is informative
+            log.warn("Can't read the picture size from the AVC configuration：{}", e.getMessage());
+        }
+        return new FragmentTrack(id, true, avcConfig, VIDEO_TIMESCALE, width, height, 0, allocator);
+    }
+
+    /**
+     * @param id          track id
+     * @param audioConfig AudioSpecificConfig, the body of the FLV sequence header
+     * @param allocator   allocator of the sample data
+     * @return AAC track, in samples of its rate
+     * @throws IllegalArgumentException if the config can't be read
+     */
+    static FragmentTrack audio(int id, byte[] audioConfig, ByteBufAllocator allocator) {
+        if (audioConfig.length < 2 || audioConfig.length > MAX_AUDIO_CONFIG_SIZE) {
+            throw new IllegalArgumentException("Invalid AudioSpecificConfig size " + audioConfig.length);
+        }
+        BitReader reader = new BitReader(audioConfig);
+        if (reader.readBits(5) == 31) {
+            reader.skipBits(6); // Escaped object type
+        }
+        int rateIndex = reader.readBits(4);
+        int sampleRate;
+        if (rateIndex == 15) {
+            sampleRate = reader.readBits(24);
+        } else if (rateIndex < AAC_SAMPLE_RATES.length) {
+            sampleRate = AAC_SAMPLE_RATES[rateIndex];
+        } else {
+            throw new IllegalArgumentException("Invalid AAC sample rate index " + rateIndex);
+        }
+        int channelConfig = reader.readBits(4);
+        if (sampleRate == 0) {
+            throw new IllegalArgumentException("Invalid AAC sample rate 0");
+        }
+        // Channel configuration 0 is described in the stream, stereo is only a hint for the sample entry
+        return new FragmentTrack(id, false, audioConfig, sampleRate, 0, 0, channelConfig > 0 ? channelConfig : 2,
+                allocator);
+    }
+
+    /**
+     * Picture size from the first SPS of an avcC, cropping applied
+     */
+    private static int[] parseSpsSize(byte[] avcConfig) {
+        if (avcConfig.length < 8 || (avcConfig[5] & 0x1f) == 0) {
+            throw new IllegalArgumentException("No SPS in the AVC configuration");
+        }
+        int spsLength = ((avcConfig[6] & 0xff) << 8) | (avcConfig[7] & 0xff);
+        if (8 + spsLength > avcConfig.length || spsLength < 4) {
+            throw new IllegalArgumentException("Truncated SPS");
+        }
+        BitReader reader = new BitReader(unescape(avcConfig, 9, spsLength - 1)); // After the NAL unit header
+
+        int profile = reader.readBits(8);
+        reader.skipBits(16); // Constraint flags, level
+        reader.readUe(); // seq_parameter_set_id
+        int chromaFormat = 1;
+        boolean separateColourPlanes = false;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44 || profile == 83
+                || profile == 86 || profile == 118 || profile == 128 || profile == 138 || profile == 139
+                || profile == 134 || profile == 135) {
+            chromaFormat = reader.readUe();
+            if (chromaFormat == 3) {
+                separateColourPlanes = reader.readBit();
+            }
+            reader.readUe(); // bit_depth_luma_minus8
+            reader.readUe(); // bit_depth_chroma_minus8
+            reader.readBit(); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBit()) {
+                skipScalingLists(reader, chromaFormat != 3 ? 8 : 12);
+            }
+        }
+        reader.readUe(); // log2_max_frame_num_minus4
+        int pictureOrderCountType = reader.readUe();
+        if (pictureOrderCountType == 0) {
+            reader.readUe(); // log2_max_pic_order_cnt_lsb_minus4
+        } else if (pictureOrderCountType == 1) {
+            reader.readBit(); // delta_pic_order_always_zero_flag
+            reader.readSe(); // offset_for_non_ref_pic
+            reader.readSe(); // offset_for_top_to_bottom_field
+            int cycle = reader.readUe();
+            for (int i = 0; i < cycle; i++) {
+                reader.readSe();
+            }
+        }
+        reader.readUe(); // max_num_ref_frames
+        reader.readBit(); // gaps_in_frame_num_value_allowed_flag
+        int widthInMacroblocks = reader.readUe() + 1;
+        int heightInMapUnits = reader.readUe() + 1;
+        boolean frameMacroblocksOnly = reader.readBit();
+        if (!frameMacroblocksOnly) {
+            reader.readBit(); // mb_adaptive_frame_field_flag
+        }
+        reader.readBit(); // direct_8x8_inference_flag
+        int cropLeft = 0;
+        int cropRight = 0;
+        int cropTop = 0;
+        int cropBottom = 0;
+        if (reader.readBit()) {
+            cropLeft = reader.readUe();
+            cropRight = reader.readUe();
+            cropTop = reader.readUe();
+            cropBottom = reader.readUe();
+        }
+
+        int fieldFactor = frameMacroblocksOnly ? 1 : 2;
+        int chromaArrayType = separateColourPlanes ? 0 : chromaFormat;
+        int cropUnitX = chromaArrayType == 0 || chromaFormat == 3 ? 1 : 2;
+        int cropUnitY = (chromaArrayType == 0 || chromaFormat != 1 ? 1 : 2) * fieldFactor;
+        return new int[]{
+                widthInMacroblocks * 16 - cropUnitX * (cropLeft + cropRight),
+                fieldFactor * heightInMapUnits * 16 - cropUnitY * (cropTop + cropBottom)};
+    }
+
+    private static void skipScalingLists(BitReader reader, int lists) {
+        for (int i = 0; i < lists; i++) {
+            if (!reader.readBit()) {
+                continue;
+            }
+            int size = i < 6 ? 16 : 64;
+            int last = 8;
+            int next = 8;
+            for (int j = 0; j < size; j++) {
+                if (next != 0) {
+                    next = (last + reader.readSe() + 256) % 256;
+                }
+                last = next == 0 ? last : next;
+            }
+        }
+    }
+
+    /**
+     * NAL unit payload without its emulation prevention bytes ({@code 00 00 03})
+     */
+    private static byte[] unescape(byte[] source, int offset, int length) {
+        byte[] result = new byte[length];
+        int size = 0;
+        int zeros = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = source[i];
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            result[size++] = b;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    int id() {
+        return id;
+    }
+
+    boolean isVideo() {
+        return video;
+    }
+
+    byte[] config() {
+        return config;
+    }
+
+    int timescale() {
+        return timescale;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    int channels() {
+        return channels;
+    }
+
+    /**
+     * Gather a video sample, its duration is known once the next one arrives, see {@link #completeLast(long)}
+     *
+     * @param decodeTime        decoding time, in the track's timescale
+     * @param compositionOffset presentation minus decoding time
+     * @param sampleFlags       {@link #SAMPLE_SYNC} or {@link #SAMPLE_NON_SYNC}
+     * @param source            buffer holding the sample
+     * @param index             sample offset in the buffer
+     * @param length            sample size
+     */
+    void addVideo(long decodeTime, int compositionOffset, int sampleFlags, ByteBuf source, int index, int length) {
+        add(decodeTime, compositionOffset, sampleFlags, 0, source, index, length);
+    }
+
+    /**
+     * Set the duration of the last video sample from the decoding time of the next
+     *
+     * @param nextDecodeTime decoding time of the sample after it
+     */
+    void completeLast(long nextDecodeTime) {
+        if (count == 0 || durations[count - 1] != 0) {
+            return;
+        }
+        lastDuration = (int) Math.max(1, nextDecodeTime - lastDecodeTime);
+        durations[count - 1] = lastDuration;
+        duration += lastDuration;
+    }
+
+    /**
+     * Gather an AAC frame. Frames follow each other without gaps: a timestamp within the tolerance of the end of
+     * the previous frame is snapped to it, a later one (a gap in the stream) stretches the previous frame, and an
+     * earlier one is dropped.
+     *
+     * @param decodeTime decoding time, in the track's timescale
+     * @param tolerance  allowed timestamp jitter, in the track's timescale
+     * @param source     buffer holding the frame
+     * @param index      frame offset in the buffer
+     * @param length     frame size
+     */
+    void addAudio(long decodeTime, long tolerance, ByteBuf source, int index, int length) {
+        if (lastDecodeTime >= 0) {
+            long expected = lastDecodeTime + lastDuration;
+            if (decodeTime < expected - tolerance) {
+                return;
+            }
+            if (decodeTime <= expected + tolerance) {
+                decodeTime = expected;
+            } else if (count > 0) {
+                int gap = (int) (decodeTime - expected);
+                durations[count - 1] += gap;
+                duration += gap;
+            }
+        }
+        lastDuration = AAC_FRAME_SAMPLES;
+        add(decodeTime, 0, SAMPLE_SYNC, AAC_FRAME_SAMPLES, source, index, length);
+        duration += AAC_FRAME_SAMPLES;
+    }
+
+    private void add(long decodeTime, int compositionOffset, int sampleFlags, int sampleDuration, ByteBuf source,
+                     int index, int length) {
+        if (count == durations.length) {
+            int capacity = count * 2;
+            durations = Arrays.copyOf(durations, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            compositionOffsets = Arrays.copyOf(compositionOffsets, capacity);
+        }
+        if (count == 0) {
+            baseDecodeTime = decodeTime;
+        }
+        if (data == null) {
+            data = allocator.directBuffer(Math.max(length, 4096));
+        }
+        data.writeBytes(source, index, length);
+        durations[count] = sampleDuration;
+        sizes[count] = length;
+        flags[count] = sampleFlags;
+        compositionOffsets[count] = compositionOffset;
+        count++;
+        lastDecodeTime = decodeTime;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int duration(int sample) {
+        return durations[sample];
+    }
+
+    int size(int sample) {
+        return sizes[sample];
+    }
+
+    int flags(int sample) {
+        return flags[sample];
+    }
+
+    int compositionOffset(int sample) {
+        return compositionOffsets[sample];
+    }
+
+    long baseDecodeTime() {
+        return baseDecodeTime;
+    }
+
+    ByteBuf data() {
+        return data;
+    }
+
+    /**
+     * Duration of the last complete sample, in microseconds, about the one of the next sample
+     */
+    long lastDurationMicros() {
+        return (long) lastDuration * 1000000 / timescale;
+    }
+
+    /**
+     * Duration of the complete samples, in microseconds
+     */
+    long durationMicros() {
+        return duration * 1000000 / timescale;
+    }
+
+    /**
+     * Start the next fragment
+     */
+    void clear() {
+        count = 0;
+        duration = 0;
+        if (data != null) {
+            data.clear();
+        }
+    }
+
+    void release() {
+        if (data != null) {
+            data.release();
+            data = null;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package com.aaron.stream.hls;
+
+import com.aaron.stream.flv.FlvTag;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Low-latency HLS output of a stream session: the H.264/AAC FLV tags the session already produces are repackaged
+ * into fragmented MP4, without decoding, so HLS viewers cost no encode whatever their number.
+ * <p>
+ * Every part (a fragment of about the part target) is published to the {@link SegmentCache} as soon as it's
+ * complete, and segments start on a key frame once the segment target is reached, as the concatenation of their
+ * parts. The media playlist is rendered once per part and shared by all its requests; a request for a segment or
+ * part that isn't published yet waits for it (blocking playlist reload).
+ * <p>
+ * A change of the sequence headers (the camera was reconfigured) starts a new init segment, behind a
+ * discontinuity.
+ * <p>
+ * A segment that drops out of the playlist, and an init segment no listed segment uses any more, are removed from
+ * the cache once the playlist's duration has passed, so players and a caching proxy still fetching them get them.
+ */
+@Slf4j
+public class HlsPackager {
+    public static final String PLAYLIST = "index.m3u8";
+
+    private static final int PLAYLIST_SEGMENTS = 6; // Complete segments listed
+    private static final int PART_SEGMENTS = 3; // Most recent complete segments listed with their parts
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int AUDIO_TRACK_ID = 2;
+    private static final long AUDIO_JITTER_MILLIS = 100; // AAC timestamps further off the previous frame are a gap
+
+    private static final int FLV_HEADER_VIDEO = 0x01;
+    private static final int VIDEO_CODEC_AVC = 7;
+    private static final int AVC_NALU = 1;
+    private static final int AUDIO_FORMAT_AAC = 10;
+    private static final int VIDEO_DATA_HEADER_SIZE = 5; // Frame type and codec, packet type, composition time
+    private static final int AUDIO_DATA_HEADER_SIZE = 2; // Format, packet type
+
+    private final String sessionKey;
+    private final String streamId; // Prefix of the names, they are never reused, even by a later session of the camera
+    private final String uriQuery;
+    private final SegmentCache cache;
+    private final ByteBufAllocator allocator;
+    private final long partTargetMicros;
+    private final long segmentTargetMicros;
+
+    // Guarded by this
+    private boolean hasVideo = true; // From the FLV header
+    private byte[] videoConfig;
+    private byte[] audioConfig;
+    private FragmentTrack video; // Tracks of the current init segment
+    private FragmentTrack audio;
+    private int initVersion = -1;
+    private boolean awaitingSegmentStart = true; // Until a key frame, at first and after a configuration change
+    private boolean pendingDiscontinuity;
+    private int fragmentSequence;
+    private long mediaSequence; // Of the segment being built
+    private Segment current;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long discontinuitySequence;
+    private long targetDuration; // Seconds, only ever raised
+    private String playlist;
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final ArrayDeque<Expired> expired = new ArrayDeque<>(); // Oldest first
+    private boolean closed;
+
+    /**
+     * @param sessionKey          key of the stream session
+     * @param uriQuery            query string of the uris in the playlist, empty or starting with {@code ?}
+     * @param cache               cache the segments are published to
+     * @param allocator           buffer allocator
+     * @param partTargetMillis    maximum part duration
+     * @param segmentTargetMillis duration after which a segment ends on the next key frame
+     */
+    public HlsPackager(String sessionKey, String uriQuery, SegmentCache cache, ByteBufAllocator allocator,
+                       long partTargetMillis, long segmentTargetMillis) {
+        this.sessionKey = sessionKey;
+        this.streamId = Long.toString(System.currentTimeMillis(), 36);
+        this.uriQuery = uriQuery;
+        this.cache = cache;
+        this.allocator = allocator;
+        this.partTargetMicros = TimeUnit.MILLISECONDS.toMicros(partTargetMillis);
+        this.segmentTargetMicros = TimeUnit.MILLISECONDS.toMicros(segmentTargetMillis);
+        this.targetDuration = Math.max(1, (segmentTargetMillis + 999) / 1000);
+    }
+
+    /**
+     * Key of a resource in the {@link SegmentCache}
+     *
+     * @param sessionKey key of the stream session
+     * @param name       resource name, as in the playlist
+     * @return cache key
+     */
+    public static String cacheKey(String sessionKey, String name) {
+        return sessionKey + "/" + name;
+    }
+
+    /**
+     * Package a tag of the session
+     *
+     * @param tag live tag, not retained
+     */
+    public synchronized void onTag(FlvTag tag) {
+        if (closed) {
+            return;
+        }
+        ByteBuf content = tag.content();
+        int data = content.readerIndex() + FlvTag.TAG_HEADER_SIZE;
+        int dataSize = content.readableBytes() - FlvTag.TAG_HEADER_SIZE - FlvTag.PREVIOUS_TAG_SIZE;
+        switch (tag.type()) {
+            case FlvTag.TYPE_HEADER:
+                hasVideo = (content.getByte(content.readerIndex() + 4) & FLV_HEADER_VIDEO) != 0;
+                break;
+            case FlvTag.TYPE_VIDEO:
+                if (dataSize > VIDEO_DATA_HEADER_SIZE && (content.getByte(data) & 0x0f) == VIDEO_CODEC_AVC) {
+                    onVideo(tag, content, data, dataSize);
+                }
+                break;
+            case FlvTag.TYPE_AUDIO:
+                // Only AAC, an MP3 track of a copied stream is left out
+                if (dataSize > AUDIO_DATA_HEADER_SIZE && (content.getUnsignedByte(data) >> 4) == AUDIO_FORMAT_AAC) {
+                    onAudio(tag, content, data, dataSize);
+                }
+                break;
+            default:
+                break; // Metadata, the init segment describes the tracks
+        }
+    }
+
+    private void onVideo(FlvTag tag, ByteBuf content, int data, int dataSize) {
+        if (tag.isSequenceHeader()) {
+            videoConfig = copy(content, data + VIDEO_DATA_HEADER_SIZE, dataSize - VIDEO_DATA_HEADER_SIZE);
+            onConfig();
+            return;
+        }
+        boolean keyFrame = tag.isKeyFrame();
+        if (content.getByte(data + 1) != AVC_NALU || videoConfig == null || (awaitingSegmentStart && !keyFrame)) {
+            return;
+        }
+
+        long decodeTime = (long) tag.timestamp() * FragmentTrack.VIDEO_TIMESCALE / 1000;
+        if (video != null) {
+            video.completeLast(decodeTime);
+        }
+        if (keyFrame && (awaitingSegmentStart || segmentMicros() >= segmentTargetMicros)) {
+            startSegment();
+        } else if (partMicros() + video.lastDurationMicros() > partTargetMicros && publishPart()) {
+            publish();
+        }
+        int compositionOffset = content.getMedium(data + 2) * (FragmentTrack.VIDEO_TIMESCALE / 1000);
+        video.addVideo(decodeTime, compositionOffset, keyFrame ? FragmentTrack.SAMPLE_SYNC : FragmentTrack.SAMPLE_NON_SYNC,
+                content, data + VIDEO_DATA_HEADER_SIZE, dataSize - VIDEO_DATA_HEADER_SIZE);
+    }
+
+    private void onAudio(FlvTag tag, ByteBuf content, int data, int dataSize) {
+        if (tag.isSequenceHeader()) {
+            byte[] config = copy(content, data + AUDIO_DATA_HEADER_SIZE, dataSize - AUDIO_DATA_HEADER_SIZE);
+            try {
+                FragmentTrack.audio(AUDIO_TRACK_ID, config, allocator);
+            } catch (IllegalArgumentException e) {
+                log.warn("HLS stream {} leaves out its audio, can't read the AAC configuration：{}", sessionKey, e.getMessage());
+                return;
+            }
+            audioConfig = config;
+            onConfig();
+            return;
+        }
+        if (!hasVideo && audioConfig != null) {
+            // Every AAC frame is a sync sample, parts and segments of an audio only stream are cut on any frame
+            if (awaitingSegmentStart || segmentMicros() >= segmentTargetMicros) {
+                startSegment();
+            } else if (partMicros() + audio.lastDurationMicros() > partTargetMicros && publishPart()) {
+                publish();
+            }
+        }
+        if (audio == null || awaitingSegmentStart) {
+            return;
+        }
+        long decodeTime = (long) tag.timestamp() * audio.timescale() / 1000;
+        audio.addAudio(decodeTime, audio.timescale() * AUDIO_JITTER_MILLIS / 1000,
+                content, data + AUDIO_DATA_HEADER_SIZE, dataSize - AUDIO_DATA_HEADER_SIZE);
+    }
+
+    /**
+     * A sequence header arrived. The ones repeated when the camera is reopened are the same, anything else
+     * waits for the next key frame to start a new init segment.
+     */
+    private void onConfig() {
+        if (initVersion >= 0 && configChanged()) {
+            awaitingSegmentStart = true;
+        }
+    }
+
+    private boolean configChanged() {
+        return !Arrays.equals(video != null ? video.config() : null, videoConfig)
+                || !Arrays.equals(audio != null ? audio.config() : null, audioConfig);
+    }
+
+    /**
+     * End the current segment and start the next one
+     */
+    private void startSegment() {
+        if (current != null) {
+            publishPart();
+            closeSegment();
+            publish();
+        }
+        boolean discontinuity = pendingDiscontinuity;
+        pendingDiscontinuity = false;
+        if (initVersion < 0 || configChanged()) {
+            discontinuity |= initVersion >= 0;
+            newInitSegment();
+        }
+        current = new Segment(mediaSequence, initVersion, discontinuity);
+        awaitingSegmentStart = false;
+    }
+
+    private void newInitSegment() {
+        releaseTracks();
+        video = videoConfig != null ? FragmentTrack.video(VIDEO_TRACK_ID, videoConfig, allocator) : null;
+        audio = audioConfig != null ? FragmentTrack.audio(AUDIO_TRACK_ID, audioConfig, allocator) : null;
+        initVersion++;
+        cache.pin(key(initName(initVersion)), Fmp4Writer.initSegment(allocator, tracks()));
+        log.info("HLS stream {} init segment {}: {}{}", sessionKey, initVersion,
+                video != null ? "H.264 " + video.width() + "x" + video.height() : "",
+                audio != null ? " AAC " + audio.timescale() + " Hz" : "");
+    }
+
+    private List<FragmentTrack> tracks() {
+        List<FragmentTrack> tracks = new ArrayList<>(2);
+        if (video != null) {
+            tracks.add(video);
+        }
+        if (audio != null) {
+            tracks.add(audio);
+        }
+        return tracks;
+    }
+
+    /**
+     * Duration of the samples gathered for the next part, from the video track when there is one
+     */
+    private long partMicros() {
+        FragmentTrack track = video != null ? video : audio;
+        return track != null ? track.durationMicros() : 0;
+    }
+
+    private long segmentMicros() {
+        return current != null ? current.duration + partMicros() : 0;
+    }
+
+    /**
+     * Write the gathered samples as the next part of the current segment and cache it
+     *
+     * @return false if there was nothing to write
+     */
+    private boolean publishPart() {
+        List<FragmentTrack> tracks = tracks();
+        tracks.removeIf(track -> track.count() == 0);
+        if (current == null || tracks.isEmpty()) {
+            return false;
+        }
+        boolean independent = video == null || (video.count() > 0 && video.flags(0) == FragmentTrack.SAMPLE_SYNC);
+        long duration = partMicros();
+        ByteBuf fragment = Fmp4Writer.fragment(allocator, ++fragmentSequence, tracks);
+        for (FragmentTrack track : tracks) {
+            track.clear();
+        }
+
+        cache.put(key(partName(current.mediaSequence, current.parts.size())), fragment.retain());
+        current.parts.add(new Part(duration, independent, fragment));
+        current.duration += duration;
+        return true;
+    }
+
+    /**
+     * Publish the current segment, its parts concatenated, and drop the oldest from the playlist
+     */
+    private void closeSegment() {
+        Segment segment = current;
+        current = null;
+        if (segment.parts.isEmpty()) {
+            pendingDiscontinuity |= segment.discontinuity;
+            return;
+        }
+
+        int size = 0;
+        for (Part part : segment.parts) {
+            size += part.content.readableBytes();
+        }
+        ByteBuf content = allocator.directBuffer(size);
+        for (Part part : segment.parts) {
+            content.writeBytes(part.content, part.content.readerIndex(), part.content.readableBytes());
+            part.release();
+        }
+        cache.put(key(segmentName(segment.mediaSequence)), content);
+        segments.addLast(segment);
+        mediaSequence++;
+        targetDuration = Math.max(targetDuration, (segment.duration + 500000) / 1000000);
+
+        // Kept for the playlist's duration, as RFC 8216 asks, for the players that loaded it before
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(targetDuration) * PLAYLIST_SEGMENTS;
+        removeExpired();
+        while (segments.size() > PLAYLIST_SEGMENTS) {
+            Segment removed = segments.removeFirst();
+            if (removed.discontinuity) {
+                discontinuitySequence++;
+            }
+            expired.addLast(new Expired(key(segmentName(removed.mediaSequence)), expiresAt));
+            if (removed.initVersion != segments.peekFirst().initVersion) {
+                expired.addLast(new Expired(key(initName(removed.initVersion)), expiresAt));
+            }
+        }
+        // Parts of older segments are not listed any more, nothing asks for them again
+        Iterator<Segment> iterator = segments.descendingIterator();
+        for (int i = 0; iterator.hasNext(); i++) {
+            Segment listed = iterator.next();
+            if (i >= PART_SEGMENTS && listed.partsListed) {
+                listed.partsListed = false;
+                for (int part = 0; part < listed.parts.size(); part++) {
+                    cache.remove(key(partName(listed.mediaSequence, part)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Render the playlist and answer the requests waiting for what it now lists
+     */
+    private void publish() {
+        playlist = render();
+        Iterator<Waiter> iterator = waiters.iterator();
+        while (iterator.hasNext()) {
+            Waiter waiter = iterator.next();
+            if (waiter.future.isDone()) {
+                iterator.remove(); // Timed out
+            } else if (isListed(waiter.mediaSequence, waiter.part)) {
+                iterator.remove();
+                waiter.future.complete(playlist);
+            }
+        }
+    }
+
+    private String render() {
+        StringBuilder builder = new StringBuilder(2048)
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:7\n")
+                .append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n')
+                .append("#EXT-X-PART-INF:PART-TARGET=").append(seconds(partTargetMicros)).append('\n')
+                .append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+                .append(seconds(3 * partTargetMicros)).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:")
+                .append(segments.isEmpty() ? mediaSequence : segments.peekFirst().mediaSequence).append('\n');
+        if (discontinuitySequence > 0) {
+            builder.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+        }
+        int listedInit = -1;
+        for (Segment segment : segments) {
+            listedInit = appendSegmentHead(builder, segment, listedInit);
+            if (segment.partsListed) {
+                appendParts(builder, segment);
+            }
+            builder.append("#EXTINF:").append(seconds(segment.duration)).append(",\n")
+                    .append(segmentName(segment.mediaSequence)).append(uriQuery).append('\n');
+        }
+        if (current != null && !current.parts.isEmpty()) {
+            appendSegmentHead(builder, current, listedInit);
+            appendParts(builder, current);
+        }
+        return builder.toString();
+    }
+
+    private int appendSegmentHead(StringBuilder builder, Segment segment, int listedInit) {
+        if (segment.discontinuity) {
+            builder.append("#EXT-X-DISCONTINUITY\n");
+        }
+        if (segment.initVersion != listedInit) {
+            builder.append("#EXT-X-MAP:URI=\"").append(initName(segment.initVersion)).append(uriQuery).append("\"\n");
+        }
+        return segment.initVersion;
+    }
+
+    private void appendParts(StringBuilder builder, Segment segment) {
+        for (int i = 0; i < segment.parts.size(); i++) {
+            Part part = segment.parts.get(i);
+            builder.append("#EXT-X-PART:DURATION=").append(seconds(part.duration))
+                    .append(",URI=\"").append(partName(segment.mediaSequence, i)).append(uriQuery).append('"');
+            if (part.independent) {
+                builder.append(",INDEPENDENT=YES");
+            }
+            builder.append('\n');
+        }
+    }
+
+    /**
+     * The media playlist, once it lists the given segment or part
+     *
+     * @param mediaSequence media sequence number the request waits for ({@code _HLS_msn}), -1 for the playlist as it
+     *                      is, as soon as it has a complete segment
+     * @param part          part of that segment ({@code _HLS_part}), -1 for the complete segment
+     * @return playlist, failed with an {@link IllegalArgumentException} if the segment is too far ahead, or an
+     * {@link IllegalStateException} if the stream ends first
+     */
+    public synchronized CompletableFuture<String> playlist(long mediaSequence, int part) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("HLS stream " + sessionKey + " ended"));
+        }
+        if (mediaSequence > this.mediaSequence + 2) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "Segment " + mediaSequence + " is too far ahead of " + this.mediaSequence));
+        }
+        if (isListed(mediaSequence, part)) {
+            return CompletableFuture.completedFuture(playlist);
+        }
+        Waiter waiter = new Waiter(mediaSequence, part);
+        waiters.add(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * The media playlist as it is
+     *
+     * @return playlist, null until it has a complete segment
+     */
+    public synchronized String currentPlaylist() {
+        return segments.isEmpty() ? null : playlist;
+    }
+
+    /**
+     * Milliseconds a blocking playlist request may be held, three target durations
+     */
+    public synchronized long getBlockingTimeout() {
+        return TimeUnit.SECONDS.toMillis(3 * targetDuration);
+    }
+
+    private boolean isListed(long mediaSequence, int part) {
+        if (segments.isEmpty()) {
+            return false; // The players start from a complete segment
+        }
+        if (mediaSequence < this.mediaSequence) {
+            return true;
+        }
+        return mediaSequence == this.mediaSequence && part >= 0 && current != null && part < current.parts.size();
+    }
+
+    /**
+     * The session ended: answer the waiting requests and drop the stream's segments
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Waiter waiter : waiters) {
+            waiter.future.completeExceptionally(new IllegalStateException("HLS stream " + sessionKey + " ended"));
+        }
+        waiters.clear();
+        if (current != null) {
+            for (Part part : current.parts) {
+                part.release();
+            }
+            current = null;
+        }
+        releaseTracks();
+        expired.clear();
+        cache.removeAll(key(streamId + "-"));
+    }
+
+    private void removeExpired() {
+        long now = System.nanoTime();
+        while (!expired.isEmpty() && now - expired.peekFirst().expiresAt >= 0) {
+            cache.remove(expired.removeFirst().key);
+        }
+    }
+
+    private void releaseTracks() {
+        if (video != null) {
+            video.release();
+        }
+        if (audio != null) {
+            audio.release();
+        }
+    }
+
+    private String key(String name) {
+        return cacheKey(sessionKey, name);
+    }
+
+    private String initName(int version) {
+        return streamId + "-init-" + version + ".mp4";
+    }
+
+    private String segmentName(long mediaSequence) {
+        return streamId + "-" + mediaSequence + ".m4s";
+    }
+
+    private String partName(long mediaSequence, int part) {
+        return streamId + "-" + mediaSequence + "." + part + ".m4s";
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1e6);
+    }
+
+    private static byte[] copy(ByteBuf content, int index, int length) {
+        byte[] bytes = new byte[length];
+        content.getBytes(index, bytes);
+        return bytes;
+    }
+
+    private static class Segment {
+        final long mediaSequence;
+        final int initVersion;
+        final boolean discontinuity;
+        final List<Part> parts = new ArrayList<>();
+        long duration; // Microseconds, of the published parts
+        boolean partsListed = true;
+
+        Segment(long mediaSequence, int initVersion, boolean discontinuity) {
+            this.mediaSequence = mediaSequence;
+            this.initVersion = initVersion;
+            this.discontinuity = discontinuity;
+        }
+    }
+
+    private static class Part {
+        final long duration; // Microseconds
+        final boolean independent;
+        ByteBuf content; // Until the segment is written
+
+        Part(long duration, boolean independent, ByteBuf content) {
+            this.duration = duration;
+            this.independent = independent;
+            this.content = content;
+        }
+
+        void release() {
+            if (content != null) {
+                content.release();
+                content = null;
+            }
+        }
+    }
+
+    private static class Expired {
+        final String key;
+        final long expiresAt; // System.nanoTime()
+
+        Expired(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Waiter {
+        final long mediaSequence;
+        final int part;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        Waiter(long mediaSequence, int part) {
+            this.mediaSequence = mediaSequence;
+            this.part = part;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.aaron.stream.hls;
+
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.metrics.ProxyMetrics;
+import com.aaron.stream.utils.ProxyInit;
+import io.netty.buffer.ByteBuf;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Init segments, segments and parts of every HLS stream, least recently used first out once the cache is over its
+ * size. An entry is written once by its packager and answered to any number of viewers (or a caching proxy in
+ * front) from memory, each response is a duplicate of the cached buffer.
+ * <p>
+ * The packagers remove the entries their playlist no longer lists, the size bound only trims what is left behind.
+ * Init segments are pinned: a player fetches one once, so it would always be the least recently used entry, yet
+ * every new viewer needs it for as long as it's listed.
+ */
+public class SegmentCache {
+    private final static ProxyProperties PROXY_PROPERTIES = ProxyInit.getProxyProperties();
+    private final static SegmentCache INSTANCE = new SegmentCache(PROXY_PROPERTIES.getHlsCacheMaxBytes());
+
+    private final long maxBytes;
+
+    // Guarded by this
+    private final LinkedHashMap<String, ByteBuf> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, ByteBuf> pinned = new HashMap<>(); // Never evicted, counted in the size
+    private long bytes;
+
+    SegmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static SegmentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Cache an entry, evicting the least recently used ones over the size
+     *
+     * @param key     cache key
+     * @param content content, owned by the cache afterwards
+     */
+    public synchronized void put(String key, ByteBuf content) {
+        release(entries.put(key, content));
+        bytes += content.readableBytes();
+        evict();
+    }
+
+    /**
+     * Cache an entry the size bound never evicts, until it's removed
+     *
+     * @param key     cache key
+     * @param content content, owned by the cache afterwards
+     */
+    public synchronized void pin(String key, ByteBuf content) {
+        release(pinned.put(key, content));
+        bytes += content.readableBytes();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<ByteBuf> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            ByteBuf evicted = iterator.next();
+            iterator.remove();
+            bytes -= evicted.readableBytes();
+            evicted.release();
+        }
+    }
+
+    /**
+     * @param key cache key
+     * @return retained duplicate of the content, to be released by the caller, null if not cached
+     */
+    public synchronized ByteBuf get(String key) {
+        ByteBuf content = entries.get(key);
+        if (content == null) {
+            content = pinned.get(key);
+        }
+        if (content == null) {
+            ProxyMetrics.HLS_CACHE_MISSES.increment();
+            return null;
+        }
+        ProxyMetrics.HLS_CACHE_HITS.increment();
+        return content.retainedDuplicate();
+    }
+
+    public synchronized void remove(String key) {
+        release(entries.remove(key));
+        release(pinned.remove(key));
+    }
+
+    /**
+     * Remove the entries of a stream
+     *
+     * @param prefix key prefix
+     */
+    public synchronized void removeAll(String prefix) {
+        removeAll(entries, prefix);
+        removeAll(pinned, prefix);
+    }
+
+    private void removeAll(Map<String, ByteBuf> map, String prefix) {
+        Iterator<Map.Entry<String, ByteBuf>> iterator = map.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ByteBuf> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                release(entry.getValue());
+            }
+        }
+    }
+
+    private void release(ByteBuf content) {
+        if (content != null) {
+            bytes -= content.readableBytes();
+            content.release();
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size() + pinned.size();
+    }
+}
@@ -0,0 +1,181 @@
+package com.aaron.stream.loadgen;
+
+import com.aaron.stream.consts.ProxyConst;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator: opens concurrent HTTP-FLV viewers on a proxy and reports the throughput, the time to the first
+ * byte and to the first video frame, and how often the video stalls. Against a proxy started with
+ * {@code PROXY_RESOLVER=file}, every camera plays a local file, so a production load can be reproduced without
+ * cameras.
+ * <pre>
+ * java -Dload.url=http://127.0.0.1:9999/cam{camera} -Dload.clients=200 -Dload.cameras=20 \
+ *      -cp media-netty-proxy-1.0.0-SNAPSHOT.jar com.aaron.stream.loadgen.LoadGenerator
+ * </pre>
+ * Viewer {@code i} watches camera {@code i % load.cameras}, the viewers are started evenly over the ramp up.
+ */
+@Slf4j
+public class LoadGenerator {
+    private final static String CAMERA_PLACEHOLDER = "{camera}";
+    private final static String DEFAULT_URL = "http://127.0.0.1:9999/cam" + CAMERA_PLACEHOLDER;
+    private final static int DEFAULT_CLIENTS = 10;
+    private final static int DEFAULT_CAMERAS = 1;
+    private final static int DEFAULT_DURATION = 60;
+    private final static int DEFAULT_RAMP_UP = 10;
+    private final static long DEFAULT_STALL = 1000;
+    private final static int CONNECT_TIMEOUT_MILLIS = 10000;
+    private final static long REPORT_INTERVAL_SECONDS = 5;
+    private final static double MEGABIT = 1000000 / 8.0;
+
+    private final LoadStats stats = new LoadStats();
+    private long lastBytes;
+    private long lastVideoTags;
+    private long lastReportNanos;
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator().run(
+                System.getProperty("load.url", DEFAULT_URL),
+                Integer.getInteger("load.clients", DEFAULT_CLIENTS),
+                Integer.getInteger("load.cameras", DEFAULT_CAMERAS),
+                Integer.getInteger("load.duration", DEFAULT_DURATION),
+                Integer.getInteger("load.rampUp", DEFAULT_RAMP_UP),
+                Long.getLong("load.stall", DEFAULT_STALL),
+                System.getProperty("load.username", System.getenv(ProxyConst.USERNAME)),
+                System.getProperty("load.password", System.getenv(ProxyConst.PASSWORD)));
+    }
+
+    /**
+     * @param url             stream url, {@code {camera}} is replaced by the camera number
+     * @param clients         concurrent viewers
+     * @param cameras         cameras the viewers are spread over
+     * @param durationSeconds length of the test, ramp up included
+     * @param rampUpSeconds   time over which the viewers are started
+     * @param stallMillis     gap between two video frames counted as a stall
+     * @param username        Basic credentials, null to send none
+     * @param password        Basic credentials
+     */
+    void run(String url, int clients, int cameras, int durationSeconds, int rampUpSeconds, long stallMillis,
+             String username, String password) throws InterruptedException {
+        URI base = URI.create(url.replace(CAMERA_PLACEHOLDER, "0"));
+        if (!"http".equalsIgnoreCase(base.getScheme())) {
+            throw new IllegalArgumentException("Only http:// stream urls are supported: " + url);
+        }
+        String host = base.getHost();
+        int port = base.getPort() > 0 ? base.getPort() : 80;
+        String authorization = username == null ? null : "Basic " + Base64.getEncoder().encodeToString(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        long stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        log.info("Load test of {}: {} viewers of {} cameras for {} s, ramp up {} s, stall above {} ms",
+                url, clients, cameras, durationSeconds, rampUpSeconds, stallMillis);
+
+        EventLoopGroup group = new NioEventLoopGroup();
+        ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS);
+        long startNanos = System.nanoTime();
+        lastReportNanos = startNanos;
+        try {
+            for (int i = 0; i < clients; i++) {
+                URI stream = URI.create(url.replace(CAMERA_PLACEHOLDER, String.valueOf(i % cameras)));
+                String uri = stream.getRawQuery() == null
+                        ? stream.getRawPath() : stream.getRawPath() + "?" + stream.getRawQuery();
+                LoadViewer viewer = new LoadViewer(host + ":" + port, uri, authorization, stallNanos, stats);
+                long delayMillis = TimeUnit.SECONDS.toMillis(rampUpSeconds) * i / clients;
+                group.schedule(() -> connect(bootstrap, host, port, viewer, channels),
+                        delayMillis, TimeUnit.MILLISECONDS);
+            }
+            group.scheduleAtFixedRate(() -> report(startNanos),
+                    REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            stats.stop();
+            channels.close().awaitUninterruptibly();
+            summary(clients, System.nanoTime() - startNanos);
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private void connect(Bootstrap bootstrap, String host, int port, LoadViewer viewer, ChannelGroup channels) {
+        if (stats.isStopping()) {
+            return;
+        }
+        ChannelFuture future = bootstrap.clone()
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec(), viewer);
+                    }
+                })
+                .connect(host, port);
+        channels.add(future.channel());
+        future.addListener(connected -> {
+            if (!connected.isSuccess()) {
+                stats.onFailure(connected.cause().getClass().getSimpleName());
+            }
+        });
+    }
+
+    /**
+     * Throughput and frame rate since the previous report
+     */
+    private synchronized void report(long startNanos) {
+        long now = System.nanoTime();
+        long bytes = stats.bytes.sum();
+        long videoTags = stats.videoTags.sum();
+        double seconds = (now - lastReportNanos) / 1e9;
+        log.info("{} s: {} streaming, {} Mbit/s, {} video frames/s, {} stalls, {} failures",
+                TimeUnit.NANOSECONDS.toSeconds(now - startNanos), stats.streaming.get(),
+                format((bytes - lastBytes) / MEGABIT / seconds), format((videoTags - lastVideoTags) / seconds),
+                stats.stalls.sum(), stats.failureCount());
+        lastBytes = bytes;
+        lastVideoTags = videoTags;
+        lastReportNanos = now;
+    }
+
+    private void summary(int clients, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        double watchedMinutes = stats.watchedNanos.sum() / 60e9;
+        List<Long> firstBytes = stats.firstBytes();
+        List<Long> firstFrames = stats.firstFrames();
+        log.info("Viewers: {} started, {} got the stream, failures {}",
+                clients, firstBytes.size(), stats.failures());
+        log.info("Time to first byte ms: p50 {}, p95 {}, p99 {}, max {}",
+                LoadStats.percentile(firstBytes, 0.5), LoadStats.percentile(firstBytes, 0.95),
+                LoadStats.percentile(firstBytes, 0.99), LoadStats.percentile(firstBytes, 1));
+        log.info("Time to first video frame ms: p50 {}, p95 {}, p99 {}, max {}",
+                LoadStats.percentile(firstFrames, 0.5), LoadStats.percentile(firstFrames, 0.95),
+                LoadStats.percentile(firstFrames, 0.99), LoadStats.percentile(firstFrames, 1));
+        log.info("Throughput: {} Mbit/s, {} video frames/s per viewer",
+                format(stats.bytes.sum() / MEGABIT / seconds),
+                format(watchedMinutes > 0 ? stats.videoTags.sum() / (watchedMinutes * 60) : 0));
+        log.info("Stalls: {}, {} per viewer minute, {} % of the time watched",
+                stats.stalls.sum(), format(watchedMinutes > 0 ? stats.stalls.sum() / watchedMinutes : 0),
+                format(watchedMinutes > 0 ? stats.stalledNanos.sum() / (watchedMinutes * 60e9) * 100 : 0));
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+}
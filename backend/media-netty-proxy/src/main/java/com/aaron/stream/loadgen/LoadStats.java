@@ -0,0 +1,101 @@
+package com.aaron.stream.loadgen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of all the viewers of a load test, updated from the event loops
+ */
+class LoadStats {
+    final LongAdder bytes = new LongAdder();
+    final LongAdder videoTags = new LongAdder();
+    final LongAdder stalls = new LongAdder();
+    final LongAdder stalledNanos = new LongAdder();
+    final LongAdder watchedNanos = new LongAdder(); // From the first byte to the end, of every viewer
+    final AtomicInteger streaming = new AtomicInteger();
+    private final Queue<Long> firstBytes = new ConcurrentLinkedQueue<>(); // Nanoseconds from the request
+    private final Queue<Long> firstFrames = new ConcurrentLinkedQueue<>(); // Nanoseconds from the request
+    private final ConcurrentMap<String, LongAdder> failures = new ConcurrentSkipListMap<>();
+    private volatile boolean stopping;
+
+    void onFirstByte(long nanos) {
+        firstBytes.add(nanos);
+    }
+
+    void onFirstFrame(long nanos) {
+        firstFrames.add(nanos);
+    }
+
+    void onStall(long nanos) {
+        stalls.increment();
+        stalledNanos.add(nanos);
+    }
+
+    /**
+     * @param reason e.g. the status of a refused request
+     */
+    void onFailure(String reason) {
+        failures.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * The test is over, the viewers closed from now on didn't fail
+     */
+    void stop() {
+        stopping = true;
+    }
+
+    boolean isStopping() {
+        return stopping;
+    }
+
+    long failureCount() {
+        return failures.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    Map<String, Long> failures() {
+        Map<String, Long> counts = new TreeMap<>();
+        failures.forEach((reason, count) -> counts.put(reason, count.sum()));
+        return counts;
+    }
+
+    List<Long> firstBytes() {
+        return sortedMillis(firstBytes);
+    }
+
+    List<Long> firstFrames() {
+        return sortedMillis(firstFrames);
+    }
+
+    private static List<Long> sortedMillis(Queue<Long> nanos) {
+        List<Long> millis = new ArrayList<>(nanos.size());
+        for (long value : nanos) {
+            millis.add(TimeUnit.NANOSECONDS.toMillis(value));
+        }
+        Collections.sort(millis);
+        return millis;
+    }
+
+    /**
+     * @param sorted   sorted values
+     * @param quantile between 0 and 1
+     * @return value at the quantile, 0 if there are none
+     */
+    static long percentile(List<Long> sorted, double quantile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+}
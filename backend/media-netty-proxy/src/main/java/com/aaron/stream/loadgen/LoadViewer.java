@@ -0,0 +1,165 @@
+package com.aaron.stream.loadgen;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One HTTP-FLV viewer. The FLV tags are only parsed far enough to tell when each video frame arrives: a gap between
+ * two frames longer than the stall threshold is a stall, a player's buffer would have run dry.
+ */
+@Slf4j
+class LoadViewer extends SimpleChannelInboundHandler<HttpObject> {
+    private final static int FILE_HEADER_SIZE = 13; // FLV header and the first previous tag size
+    private final static int TAG_HEADER_SIZE = 11;
+    private final static int PREVIOUS_TAG_SIZE = 4;
+    private final static int VIDEO_TAG = 9;
+
+    private final String host;
+    private final String uri;
+    private final String authorization;
+    private final long stallNanos;
+    private final LoadStats stats;
+
+    private final byte[] tagHeader = new byte[TAG_HEADER_SIZE];
+    private int tagHeaderRead;
+    private long skip = FILE_HEADER_SIZE; // Bytes left of the file header or of the current tag's data
+    private long sentNanos;
+    private long firstByteNanos = -1;
+    private long lastFrameNanos = -1;
+    private boolean streaming;
+    private boolean failed;
+
+    /**
+     * @param host          Host header
+     * @param uri           stream path and query
+     * @param authorization Authorization header, null for none
+     * @param stallNanos    gap between two video frames counted as a stall
+     * @param stats         counters of the test
+     */
+    LoadViewer(String host, String uri, String authorization, long stallNanos, LoadStats stats) {
+        this.host = host;
+        this.uri = uri;
+        this.authorization = authorization;
+        this.stallNanos = stallNanos;
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        // Counted before a channel group closing the channel is told it's closed
+        ctx.channel().closeFuture().addListener(future -> onClosed());
+
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, host);
+        if (authorization != null) {
+            request.headers().set(HttpHeaderNames.AUTHORIZATION, authorization);
+        }
+        sentNanos = System.nanoTime();
+        ctx.writeAndFlush(request);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+        if (msg instanceof HttpResponse) {
+            HttpResponseStatus status = ((HttpResponse) msg).status();
+            if (!HttpResponseStatus.OK.equals(status)) {
+                fail("HTTP " + status.code());
+                ctx.close();
+                return;
+            }
+            streaming = true;
+            stats.streaming.incrementAndGet();
+        }
+        if (!(msg instanceof HttpContent) || !streaming) {
+            return;
+        }
+
+        ByteBuf content = ((HttpContent) msg).content();
+        long now = System.nanoTime();
+        if (content.isReadable()) {
+            if (firstByteNanos < 0) {
+                firstByteNanos = now;
+                stats.onFirstByte(now - sentNanos);
+            }
+            stats.bytes.add(content.readableBytes());
+            parse(content, now);
+        }
+        if (msg instanceof LastHttpContent) {
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        fail(cause.getClass().getSimpleName());
+        ctx.close();
+    }
+
+    private void parse(ByteBuf content, long now) {
+        while (content.isReadable()) {
+            if (skip > 0) {
+                int skipped = (int) Math.min(skip, content.readableBytes());
+                content.skipBytes(skipped);
+                skip -= skipped;
+                continue;
+            }
+            int read = Math.min(TAG_HEADER_SIZE - tagHeaderRead, content.readableBytes());
+            content.readBytes(tagHeader, tagHeaderRead, read);
+            tagHeaderRead += read;
+            if (tagHeaderRead == TAG_HEADER_SIZE) {
+                tagHeaderRead = 0;
+                skip = ((tagHeader[1] & 0xff) << 16 | (tagHeader[2] & 0xff) << 8 | tagHeader[3] & 0xff)
+                        + PREVIOUS_TAG_SIZE;
+                if ((tagHeader[0] & 0x1f) == VIDEO_TAG) {
+                    onFrame(now);
+                }
+            }
+        }
+    }
+
+    private void onFrame(long now) {
+        if (lastFrameNanos < 0) {
+            stats.onFirstFrame(now - sentNanos);
+        } else if (now - lastFrameNanos > stallNanos) {
+            stats.onStall(now - lastFrameNanos);
+        }
+        stats.videoTags.increment();
+        lastFrameNanos = now;
+    }
+
+    private void onClosed() {
+        long now = System.nanoTime();
+        if (streaming) {
+            stats.streaming.decrementAndGet();
+            if (firstByteNanos >= 0) {
+                stats.watchedNanos.add(now - firstByteNanos);
+            }
+            if (lastFrameNanos >= 0 && now - lastFrameNanos > stallNanos) {
+                stats.onStall(now - lastFrameNanos); // Still waiting for a frame at the end
+            }
+        }
+        if (!stats.isStopping()) {
+            fail(streaming ? "ended early" : "closed");
+        }
+    }
+
+    private void fail(String reason) {
+        if (!failed) {
+            failed = true;
+            stats.onFailure(reason);
+            log.debug("Viewer of {} failed: {}", uri, reason);
+        }
+    }
+}
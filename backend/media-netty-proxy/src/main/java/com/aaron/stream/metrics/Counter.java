@@ -0,0 +1,33 @@
+package com.aaron.stream.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, recording doesn't allocate or contend
+ */
+public class Counter {
+    private final String name;
+    private final String help;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    void render(PrometheusWriter writer) {
+        writer.type(name, help, "counter").sample(name, get());
+    }
+}
@@ -0,0 +1,68 @@
+package com.aaron.stream.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, in seconds. Recording is a bucket search and two adds, it doesn't allocate.
+ */
+public class Histogram {
+    private static final double[] DEFAULT_BUCKETS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final String name;
+    private final String help;
+    private final String[] bucketLabels;
+    private final long[] bucketNanos;
+    private final LongAdder[] counts; // Per bucket, the last one is +Inf
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        double[] buckets = DEFAULT_BUCKETS;
+        this.bucketLabels = new String[buckets.length];
+        this.bucketNanos = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            bucketLabels[i] = BigDecimal.valueOf(buckets[i]).toPlainString();
+            bucketNanos[i] = (long) (buckets[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+        this.counts = new LongAdder[buckets.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos observed duration
+     */
+    public void observeNanos(long nanos) {
+        int i = 0;
+        while (i < bucketNanos.length && nanos > bucketNanos[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} at the start of the observed duration
+     */
+    public void observeSince(long startNanos) {
+        observeNanos(System.nanoTime() - startNanos);
+    }
+
+    void render(PrometheusWriter writer) {
+        writer.type(name, help, "histogram");
+        long cumulative = 0;
+        for (int i = 0; i < bucketLabels.length; i++) {
+            cumulative += counts[i].sum();
+            writer.sample(name + "_bucket", "le", bucketLabels[i], cumulative);
+        }
+        cumulative += counts[bucketLabels.length].sum();
+        writer.sample(name + "_bucket", "le", "+Inf", cumulative);
+        writer.sample(name + "_sum", sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1));
+        writer.sample(name + "_count", cumulative);
+    }
+}
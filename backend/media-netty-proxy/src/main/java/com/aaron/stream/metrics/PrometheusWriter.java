@@ -0,0 +1,71 @@
+package com.aaron.stream.metrics;
+
+/**
+ * Prometheus text exposition format, version 0.0.4
+ */
+public class PrometheusWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder sb = new StringBuilder(8192);
+
+    /**
+     * Write the HELP and TYPE lines of a metric
+     */
+    public PrometheusWriter type(String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, double value) {
+        sb.append(name).append(' ');
+        return value(value);
+    }
+
+    public PrometheusWriter sample(String name, String label, String labelValue, double value) {
+        sb.append(name).append('{');
+        label(label, labelValue);
+        sb.append("} ");
+        return value(value);
+    }
+
+    public PrometheusWriter sample(String name, String label1, String labelValue1,
+                                   String label2, String labelValue2, double value) {
+        sb.append(name).append('{');
+        label(label1, labelValue1);
+        sb.append(',');
+        label(label2, labelValue2);
+        sb.append("} ");
+        return value(value);
+    }
+
+    private void label(String label, String value) {
+        sb.append(label).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private PrometheusWriter value(double value) {
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package com.aaron.stream.metrics;
+
+import com.aaron.stream.flv.GopCache;
+import com.aaron.stream.hls.SegmentCache;
+import com.aaron.stream.record.RecordingStore;
+import com.aaron.stream.resolver.StreamUrlResolver;
+import com.aaron.stream.session.SessionScheduler;
+import com.aaron.stream.session.StreamHub;
+import com.aaron.stream.session.StreamSession;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.util.AttributeKey;
+
+/**
+ * Metrics of the proxy, exposed on {@code /metrics}.
+ * <p>
+ * Hot path metrics are counters and histograms recorded without allocating. Everything that can be read from the
+ * sessions, executors and allocator is sampled when scraped instead.
+ */
+public class ProxyMetrics {
+    /**
+     * {@link System#nanoTime()} when the viewer's request arrived, for the time to first byte
+     */
+    public static final AttributeKey<Long> REQUEST_START = AttributeKey.valueOf("proxyRequestStart");
+
+    public static final Counter FRAMES_GRABBED = new Counter(
+            "proxy_frames_grabbed_total", "Frames (or packets when remuxing) read from cameras");
+    public static final Counter FRAMES_ENCODED = new Counter(
+            "proxy_frames_encoded_total", "Frames encoded (or packets remuxed) to FLV");
+    public static final Counter TAGS_DROPPED = new Counter(
+            "proxy_tags_dropped_total", "FLV tags dropped for slow viewers");
+    public static final Counter OPEN_FAILURES = new Counter(
+            "proxy_open_failures_total", "Camera streams that couldn't be opened");
+    public static final Counter UPSTREAM_RECONNECTS = new Counter(
+            "proxy_upstream_reconnects_total", "Attempts to reopen a camera stream that was lost while being watched");
+    public static final Counter URL_CACHE_HITS = new Counter(
+            "proxy_url_cache_hits_total", "Stream url lookups answered from the cache");
+    public static final Counter URL_CACHE_MISSES = new Counter(
+            "proxy_url_cache_misses_total", "Stream url lookups sent to the platform");
+    public static final Counter HLS_CACHE_HITS = new Counter(
+            "proxy_hls_cache_hits_total", "HLS segment and part requests answered from the cache");
+    public static final Counter HLS_CACHE_MISSES = new Counter(
+            "proxy_hls_cache_misses_total", "HLS segment and part requests not in the cache");
+    public static final Counter REPLAYS = new Counter(
+            "proxy_replays_total", "Recorded streams replayed from disk");
+    public static final Counter SNAPSHOT_CACHE_HITS = new Counter(
+            "proxy_snapshot_cache_hits_total", "Snapshot requests answered from the cache or by a pending decode");
+    public static final Counter SNAPSHOT_DECODES = new Counter(
+            "proxy_snapshot_decodes_total", "Snapshots decoded from a running session's key frame");
+    public static final Counter SNAPSHOT_GRABS = new Counter(
+            "proxy_snapshot_grabs_total", "Snapshots decoded by opening a camera");
+    public static final Counter STREAMS_THROTTLED = new Counter(
+            "proxy_streams_throttled_total", "Streams refused for their credential being at its stream limit");
+    public static final Counter UPSTREAM_REJECTED = new Counter(
+            "proxy_upstream_rejected_total", "Sessions and snapshot grabs refused for their camera being at its pull limit");
+    public static final Counter DEGRADED = new Counter(
+            "proxy_degraded_total", "Viewers given another rendition's session, or sessions copying their source "
+            + "instead of transcoding it, for being over budget");
+    public static final Counter CLUSTER_REDIRECTS = new Counter(
+            "proxy_cluster_redirects_total", "Requests redirected to the node owning the camera");
+    public static final Counter CLUSTER_RELAYS = new Counter(
+            "proxy_cluster_relays_total", "Sessions relaying the stream of the node owning the camera");
+    public static final Counter SHARED_DECODES = new Counter(
+            "proxy_shared_decodes_total", "Sessions encoding the frames another session decodes");
+    public static final Counter ENCODER_DROPPED_FRAMES = new Counter(
+            "proxy_encoder_dropped_frames_total", "Decoded frames dropped for the encoders being behind");
+    public static final Counter HANDLER_ERRORS = new Counter(
+            "proxy_handler_errors_total", "Requests that failed with an unexpected error");
+
+    public static final Histogram OPEN_LATENCY = new Histogram(
+            "proxy_open_latency_seconds", "Time to open a camera stream (RTSP connect and probe)");
+    public static final Histogram ENCODE_TIME = new Histogram(
+            "proxy_encode_time_seconds", "Time to encode (or remux) one frame");
+    public static final Histogram WRITE_LATENCY = new Histogram(
+            "proxy_write_latency_seconds", "Time from a tag leaving the muxer to its write to a viewer");
+    public static final Histogram TIME_TO_FIRST_BYTE = new Histogram(
+            "proxy_time_to_first_byte_seconds", "Time from a viewer's request to its first stream bytes");
+    public static final Histogram URL_LOOKUP_LATENCY = new Histogram(
+            "proxy_url_lookup_latency_seconds", "Time of a stream url lookup on the platform");
+
+    private static final Counter[] COUNTERS = {
+            FRAMES_GRABBED, FRAMES_ENCODED, TAGS_DROPPED, OPEN_FAILURES, UPSTREAM_RECONNECTS, URL_CACHE_HITS,
+            URL_CACHE_MISSES, HLS_CACHE_HITS, HLS_CACHE_MISSES, REPLAYS, SNAPSHOT_CACHE_HITS,
+            SNAPSHOT_DECODES, SNAPSHOT_GRABS, STREAMS_THROTTLED, UPSTREAM_REJECTED, DEGRADED, CLUSTER_REDIRECTS,
+            CLUSTER_RELAYS, SHARED_DECODES, ENCODER_DROPPED_FRAMES, HANDLER_ERRORS};
+    private static final Histogram[] HISTOGRAMS = {
+            OPEN_LATENCY, ENCODE_TIME, WRITE_LATENCY, TIME_TO_FIRST_BYTE, URL_LOOKUP_LATENCY};
+
+    private ProxyMetrics() {
+    }
+
+    /**
+     * Render every metric
+     *
+     * @return Prometheus text format
+     */
+    public static String scrape() {
+        PrometheusWriter writer = new PrometheusWriter();
+        for (Counter counter : COUNTERS) {
+            counter.render(writer);
+        }
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.render(writer);
+        }
+        renderSessions(writer);
+        renderExecutors(writer);
+        renderMemory(writer);
+        return writer.toString();
+    }
+
+    private static void renderSessions(PrometheusWriter writer) {
+        StreamHub hub = StreamHub.getInstance();
+        writer.type("proxy_sessions", "Live stream sessions", "gauge")
+                .sample("proxy_sessions", hub.getSessionCount());
+
+        writer.type("proxy_session_viewers", "Viewers of a camera's session", "gauge");
+        for (StreamSession session : hub.getSessions()) {
+            writer.sample("proxy_session_viewers", "camera", session.getKey(), session.getSubscriberCount());
+        }
+        writer.type("proxy_session_frames_grabbed_total", "Frames read from a camera", "counter");
+        for (StreamSession session : hub.getSessions()) {
+            writer.sample("proxy_session_frames_grabbed_total", "camera", session.getKey(), session.getFramesGrabbed());
+        }
+        writer.type("proxy_session_frames_encoded_total", "Frames of a camera encoded (or remuxed)", "counter");
+        for (StreamSession session : hub.getSessions()) {
+            writer.sample("proxy_session_frames_encoded_total", "camera", session.getKey(), session.getFramesEncoded());
+        }
+        writer.type("proxy_session_tags_dropped_total", "FLV tags of a camera dropped for slow viewers", "counter");
+        for (StreamSession session : hub.getSessions()) {
+            writer.sample("proxy_session_tags_dropped_total", "camera", session.getKey(), session.getDroppedTags());
+        }
+        // Per session, a series per viewer socket would be a new series on every reconnect
+        writer.type("proxy_session_viewer_pending_bytes_max",
+                "Bytes queued for the viewer of a camera furthest behind, not written to its socket yet", "gauge");
+        for (StreamSession session : hub.getSessions()) {
+            writer.sample("proxy_session_viewer_pending_bytes_max", "camera", session.getKey(),
+                    session.getMaxPendingBytes());
+        }
+        writer.type("proxy_session_lagging_viewers", "Viewers of a camera too slow, their frames dropped", "gauge");
+        for (StreamSession session : hub.getSessions()) {
+            writer.sample("proxy_session_lagging_viewers", "camera", session.getKey(), session.getLaggingViewers());
+        }
+        writer.type("proxy_gop_cache_bytes", "Bytes held by the GOP caches", "gauge")
+                .sample("proxy_gop_cache_bytes", GopCache.getTotalBytes());
+        writer.type("proxy_hls_cache_bytes", "Bytes held by the HLS segment cache", "gauge")
+                .sample("proxy_hls_cache_bytes", SegmentCache.getInstance().getBytes());
+        writer.type("proxy_recording_bytes", "Bytes of the recordings on disk", "gauge")
+                .sample("proxy_recording_bytes", RecordingStore.getInstance().getBytes());
+    }
+
+    private static void renderExecutors(PrometheusWriter writer) {
+        SessionScheduler scheduler = StreamHub.getInstance().getScheduler();
+        writer.type("proxy_scheduler_max_sessions", "Session threads", "gauge")
+                .sample("proxy_scheduler_max_sessions", scheduler.getMaxSessions());
+        writer.type("proxy_scheduler_active_sessions", "Session threads running a session", "gauge")
+                .sample("proxy_scheduler_active_sessions", scheduler.getActiveSessions());
+        writer.type("proxy_scheduler_max_transcodes", "Sessions that may transcode", "gauge")
+                .sample("proxy_scheduler_max_transcodes", scheduler.getMaxTranscodes());
+        writer.type("proxy_scheduler_active_transcodes", "Sessions transcoding", "gauge")
+                .sample("proxy_scheduler_active_transcodes", scheduler.getActiveTranscodes());
+        writer.type("proxy_sessions_opening", "Sessions opening their camera, their viewers waiting", "gauge")
+                .sample("proxy_sessions_opening", StreamHub.getInstance().getOpeningCount());
+        writer.type("proxy_scheduler_rejected_total", "Sessions rejected at capacity", "counter")
+                .sample("proxy_scheduler_rejected_total", scheduler.getRejectedCount());
+        writer.type("proxy_url_lookup_queue_depth", "Stream url lookups waiting for a thread", "gauge")
+                .sample("proxy_url_lookup_queue_depth", StreamUrlResolver.getInstance().getQueueDepth());
+    }
+
+    private static void renderMemory(PrometheusWriter writer) {
+        if (!(ByteBufAllocator.DEFAULT instanceof ByteBufAllocatorMetricProvider)) {
+            return;
+        }
+        ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) ByteBufAllocator.DEFAULT).metric();
+        writer.type("proxy_allocator_used_bytes", "Memory used by the buffer allocator", "gauge")
+                .sample("proxy_allocator_used_bytes", "type", "direct", metric.usedDirectMemory())
+                .sample("proxy_allocator_used_bytes", "type", "heap", metric.usedHeapMemory());
+    }
+}
@@ -0,0 +1,227 @@
+package com.aaron.stream.record;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recording of a camera rendition on disk: segment files named {@code {run}-{start}.flv} after the wall clock
+ * start of the session that recorded them and of the segment, and their key frame index.
+ * <p>
+ * Each segment file is a playable FLV file of its own, starting with the init tags and a key frame. The segments
+ * of one run continue each other's timestamps, a replay only continues into segments of the same run.
+ */
+@Slf4j
+final class CameraRecording {
+    private static final String INDEX_FILE = "index";
+    private static final String SEGMENT_SUFFIX = ".flv";
+
+    private final Path directory;
+    private final RecordingIndex index;
+    private final AtomicLong storeBytes;
+
+    // Guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /**
+     * Open the camera's directory, the segments of a previous process are kept if they are in the index
+     *
+     * @param directory     camera directory, created if needed
+     * @param indexCapacity key frames kept in the index
+     * @param storeBytes    bytes of every recording, the segments found are added
+     */
+    CameraRecording(Path directory, int indexCapacity, AtomicLong storeBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.index = new RecordingIndex(directory.resolve(INDEX_FILE), indexCapacity);
+        this.storeBytes = storeBytes;
+
+        Map<Long, Integer> headerSizes = index.headerSizes();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                Segment segment = Segment.parse(file);
+                Integer headerSize = segment != null ? headerSizes.get(segment.start) : null;
+                if (headerSize == null) {
+                    // Not seekable, e.g. the process stopped before its first key frame was indexed
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                segment.headerSize = headerSize;
+                segment.size = Files.size(file);
+                segment.end = Files.getLastModifiedTime(file).toMillis();
+                segments.put(segment.start, segment);
+                storeBytes.addAndGet(segment.size);
+            }
+        }
+    }
+
+    /**
+     * Start a segment, it's replayed up to the tags written so far and not evicted until {@link #finish(Segment)}
+     *
+     * @param run   wall clock start of the recording session
+     * @param start wall clock start of the segment
+     * @return new segment, its file isn't created yet
+     */
+    synchronized Segment startSegment(long run, long start) {
+        while (segments.containsKey(start)) {
+            start++;
+        }
+        Segment segment = new Segment(directory.resolve(run + "-" + start + SEGMENT_SUFFIX), run, start);
+        segment.writing = true;
+        segments.put(start, segment);
+        return segment;
+    }
+
+    /**
+     * The segment is complete, it may be evicted from now on
+     */
+    synchronized void finish(Segment segment) {
+        segment.writing = false;
+        segment.end = System.currentTimeMillis();
+    }
+
+    void addKeyFrame(long wallClock, Segment segment, long offset) {
+        index.add(wallClock, segment.start, (int) offset, segment.headerSize);
+    }
+
+    /**
+     * Bytes written to a segment
+     */
+    void addBytes(Segment segment, int bytes) {
+        segment.size += bytes;
+        storeBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Open a replay from the key frame at or before the time
+     *
+     * @param wallClock milliseconds since the epoch
+     * @return replay, null if nothing is recorded from then on
+     */
+    synchronized Replay replay(long wallClock) throws IOException {
+        RecordingIndex.KeyFrame keyFrame = index.seek(wallClock, segments::containsKey);
+        if (keyFrame == null) {
+            return null;
+        }
+        Segment first = segments.get(keyFrame.segment);
+        List<Replay.Section> sections = new ArrayList<>();
+        try {
+            sections.add(section(first, 0, keyFrame.headerSize));
+            sections.add(section(first, keyFrame.offset, first.size - keyFrame.offset));
+            for (Segment next : segments.tailMap(first.start, false).values()) {
+                if (next.run != first.run || next.headerSize < 0) {
+                    break;
+                }
+                sections.add(section(next, next.headerSize, next.size - next.headerSize));
+            }
+        } catch (IOException e) {
+            new Replay(keyFrame.wallClock, sections).close();
+            throw e;
+        }
+        return new Replay(keyFrame.wallClock, sections);
+    }
+
+    private static Replay.Section section(Segment segment, long position, long length) throws IOException {
+        return new Replay.Section(FileChannel.open(segment.path, StandardOpenOption.READ), position, length);
+    }
+
+    /**
+     * Delete the complete segments that ended before the time
+     *
+     * @param wallClock milliseconds since the epoch
+     */
+    synchronized void deleteBefore(long wallClock) {
+        Segment oldest;
+        while ((oldest = oldest()) != null && oldest.end < wallClock) {
+            delete(oldest);
+        }
+    }
+
+    /**
+     * Start of the oldest complete segment
+     *
+     * @return wall clock start, {@link Long#MAX_VALUE} if there is none
+     */
+    synchronized long oldestStart() {
+        Segment oldest = oldest();
+        return oldest != null ? oldest.start : Long.MAX_VALUE;
+    }
+
+    /**
+     * Delete the oldest complete segment
+     *
+     * @return false if there is none
+     */
+    synchronized boolean deleteOldest() {
+        Segment oldest = oldest();
+        if (oldest == null) {
+            return false;
+        }
+        delete(oldest);
+        return true;
+    }
+
+    private Segment oldest() {
+        for (Segment segment : segments.values()) {
+            if (!segment.writing) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment.start);
+        storeBytes.addAndGet(-segment.size);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Error delete recording segment {}：{}", segment.path, e.getMessage());
+        }
+    }
+
+    /**
+     * Segment file, written by the session thread only
+     */
+    static final class Segment {
+        final Path path;
+        final long run;
+        final long start;
+        volatile int headerSize = -1; // Set once the init tags are written
+        volatile long size; // Complete tags only
+        long end; // Wall clock time of the last write, guarded by the recording
+        boolean writing; // Guarded by the recording
+
+        Segment(Path path, long run, long start) {
+            this.path = path;
+            this.run = run;
+            this.start = start;
+        }
+
+        /**
+         * Segment of a file name, null if it isn't one
+         */
+        static Segment parse(Path file) {
+            String name = file.getFileName().toString();
+            int dash = name.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                return new Segment(file, Long.parseLong(name.substring(0, dash)),
+                        Long.parseLong(name.substring(dash + 1, name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.aaron.stream.record;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * Key frames of a camera's recording, in a memory-mapped ring of fixed size entries: wall clock time, segment,
+ * offset of the key frame in the segment file and size of the segment's init tags.
+ * <p>
+ * The index outlives a restart, and a seek is a binary search over mapped memory that doesn't touch the segment
+ * files. The entry count is written after the entry, a crash loses at most the entry being written.
+ */
+final class RecordingIndex {
+    private static final int MAGIC = 0x464c5649; // "FLVI"
+    private static final int HEADER_SIZE = 16; // Magic, capacity, entry count
+    private static final int ENTRY_SIZE = 24;
+    private static final int COUNT_OFFSET = 8;
+
+    private final MappedByteBuffer buffer; // Written back by the OS, the mapping outlives the file channel
+    private final int capacity;
+
+    // Guarded by this
+    private long count;
+
+    /**
+     * Open the index, an index of another capacity is started over
+     *
+     * @param path     index file
+     * @param capacity entries kept, the oldest is overwritten beyond it
+     */
+    RecordingIndex(Path path, int capacity) throws IOException {
+        this.capacity = capacity;
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+        }
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == capacity) {
+            count = buffer.getLong(COUNT_OFFSET);
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, capacity);
+            buffer.putLong(COUNT_OFFSET, 0);
+        }
+    }
+
+    /**
+     * Add a key frame, once its bytes are in the segment file
+     *
+     * @param wallClock  milliseconds since the epoch
+     * @param segment    segment start, milliseconds since the epoch
+     * @param offset     offset of the key frame tag in the segment file
+     * @param headerSize size of the init tags at the start of the segment file
+     */
+    synchronized void add(long wallClock, long segment, int offset, int headerSize) {
+        int position = position(count);
+        buffer.putLong(position, wallClock);
+        buffer.putLong(position + 8, segment);
+        buffer.putInt(position + 16, offset);
+        buffer.putInt(position + 20, headerSize);
+        count++;
+        buffer.putLong(COUNT_OFFSET, count);
+    }
+
+    /**
+     * Key frame to start a replay from: the last one at or before the time (the oldest one if the time is before
+     * it), moved on to the first one whose segment is still available
+     *
+     * @param wallClock milliseconds since the epoch
+     * @param available whether a segment is still on disk
+     * @return key frame, null if there is none
+     */
+    synchronized KeyFrame seek(long wallClock, LongPredicate available) {
+        long low = first();
+        long high = count - 1;
+        long found = low;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (buffer.getLong(position(middle)) <= wallClock) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        for (long i = found; i < count; i++) {
+            int position = position(i);
+            long segment = buffer.getLong(position + 8);
+            if (available.test(segment)) {
+                return new KeyFrame(buffer.getLong(position), segment, buffer.getInt(position + 16),
+                        buffer.getInt(position + 20));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Size of the init tags of every indexed segment, from its first key frame in the index
+     *
+     * @return init tags size by segment start
+     */
+    synchronized Map<Long, Integer> headerSizes() {
+        Map<Long, Integer> headerSizes = new HashMap<>();
+        for (long i = first(); i < count; i++) {
+            int position = position(i);
+            headerSizes.putIfAbsent(buffer.getLong(position + 8), buffer.getInt(position + 20));
+        }
+        return headerSizes;
+    }
+
+    private long first() {
+        return Math.max(0, count - capacity);
+    }
+
+    private int position(long index) {
+        return HEADER_SIZE + (int) (index % capacity) * ENTRY_SIZE;
+    }
+
+    /**
+     * Index entry
+     */
+    static final class KeyFrame {
+        final long wallClock;
+        final long segment;
+        final int offset;
+        final int headerSize;
+
+        KeyFrame(long wallClock, long segment, int offset, int headerSize) {
+            this.wallClock = wallClock;
+            this.segment = segment;
+            this.offset = offset;
+            this.headerSize = headerSize;
+        }
+    }
+}
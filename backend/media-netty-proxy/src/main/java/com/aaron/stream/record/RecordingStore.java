@@ -0,0 +1,164 @@
+package com.aaron.stream.record;
+
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.utils.ProxyInit;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Rolling recordings of the live sessions, one directory per camera rendition, so the last minutes of a camera
+ * can be replayed without asking the NVR.
+ * <p>
+ * Segments older than the retention are deleted, and the oldest segments of all cameras go first while the
+ * recordings are over the disk quota. Recordings of a previous process are picked up at start.
+ */
+@Slf4j
+public class RecordingStore {
+    private final static ProxyProperties PROXY_PROPERTIES = ProxyInit.getProxyProperties();
+    private static final int INDEX_CAPACITY = 65536; // Key frames per camera, 18 hours at one per second
+    private static final long EVICTION_PERIOD_MILLIS = 5000;
+    // Session keys are used as directory names, anything else (e.g. "..") isn't recorded
+    private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.@-]*");
+    private final static RecordingStore INSTANCE = new RecordingStore(PROXY_PROPERTIES.getRecordDir(),
+            PROXY_PROPERTIES.getRecordSegmentDuration(), PROXY_PROPERTIES.getRecordRetention(),
+            PROXY_PROPERTIES.getRecordQuota());
+
+    private final Path directory;
+    private final long segmentDuration;
+    private final long retentionMillis;
+    private final long quotaBytes;
+    private final Map<String, CameraRecording> recordings = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param directory        root directory, null or blank to disable recording
+     * @param segmentDuration  milliseconds, a segment ends on the first key frame after it
+     * @param retentionSeconds seconds a segment is kept after it ends
+     * @param quotaBytes       bytes of all recordings
+     */
+    RecordingStore(String directory, long segmentDuration, long retentionSeconds, long quotaBytes) {
+        this.directory = directory == null || directory.isBlank() ? null : Paths.get(directory.trim());
+        this.segmentDuration = segmentDuration;
+        this.retentionMillis = TimeUnit.SECONDS.toMillis(retentionSeconds);
+        this.quotaBytes = quotaBytes;
+        if (this.directory == null) {
+            return;
+        }
+
+        recover();
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("recording-eviction", true));
+        evictor.scheduleWithFixedDelay(this::evict, 0, EVICTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        log.info("Recording to {}, retention {}s, quota {} bytes, {} bytes found", this.directory,
+                retentionSeconds, quotaBytes, bytes.get());
+    }
+
+    public static RecordingStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Recorder of a session
+     *
+     * @param key session key
+     * @return recorder, null if recording is disabled or the session can't be recorded
+     */
+    public StreamRecorder recorder(String key) {
+        CameraRecording recording = recording(key);
+        return recording != null ? new StreamRecorder(key, recording, segmentDuration) : null;
+    }
+
+    /**
+     * Open a replay of a camera rendition from the key frame at or before the time
+     *
+     * @param key       session key
+     * @param wallClock milliseconds since the epoch
+     * @return replay, null if nothing is recorded from then on
+     */
+    public Replay replay(String key, long wallClock) throws IOException {
+        CameraRecording recording = directory != null && KEY_PATTERN.matcher(key).matches() ? recordings.get(key) : null;
+        return recording != null ? recording.replay(wallClock) : null;
+    }
+
+    /**
+     * Bytes of all recordings
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private CameraRecording recording(String key) {
+        if (directory == null || !KEY_PATTERN.matcher(key).matches()) {
+            return null;
+        }
+        try {
+            return recordings.computeIfAbsent(key, k -> {
+                try {
+                    return new CameraRecording(directory.resolve(k), INDEX_CAPACITY, bytes);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            log.warn("Error open recording of {}：{}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Open the recordings found in the directory
+     */
+    private void recover() {
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> cameras = Files.newDirectoryStream(directory, Files::isDirectory)) {
+                for (Path camera : cameras) {
+                    recording(camera.getFileName().toString());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Error read recordings in {}：{}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the segments past the retention, then the oldest ones while over the quota
+     */
+    private void evict() {
+        try {
+            long before = System.currentTimeMillis() - retentionMillis;
+            for (CameraRecording recording : recordings.values()) {
+                recording.deleteBefore(before);
+            }
+            while (bytes.get() > quotaBytes) {
+                CameraRecording oldest = null;
+                long oldestStart = Long.MAX_VALUE;
+                for (CameraRecording recording : recordings.values()) {
+                    long start = recording.oldestStart();
+                    if (start < oldestStart) {
+                        oldest = recording;
+                        oldestStart = start;
+                    }
+                }
+                if (oldest == null || !oldest.deleteOldest()) {
+                    break; // Only segments being written are left
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Error evict recordings：", e);
+        }
+    }
+}
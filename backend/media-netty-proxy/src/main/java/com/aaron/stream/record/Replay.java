@@ -0,0 +1,91 @@
+package com.aaron.stream.record;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A recorded FLV stream to send from disk: the init tags of the first segment, then the tags from the key frame
+ * sought to the end of what was recorded, over the following segments of the same session run.
+ * <p>
+ * Each section has its own open file channel, so a segment deleted meanwhile is still readable, and whoever sends
+ * a section closes its channel.
+ */
+@Slf4j
+public final class Replay implements Closeable {
+    private final long start;
+    private final List<Section> sections;
+    private final long length;
+
+    Replay(long start, List<Section> sections) {
+        this.start = start;
+        this.sections = sections;
+        long length = 0;
+        for (Section section : sections) {
+            length += section.length;
+        }
+        this.length = length;
+    }
+
+    /**
+     * Wall clock time of the first key frame, milliseconds since the epoch
+     */
+    public long getStart() {
+        return start;
+    }
+
+    public List<Section> getSections() {
+        return sections;
+    }
+
+    /**
+     * Bytes of all sections
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Close the channels of sections that won't be sent
+     */
+    @Override
+    public void close() {
+        for (Section section : sections) {
+            try {
+                section.channel.close();
+            } catch (IOException e) {
+                log.warn("Error close replay section：{}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Byte range of a segment file
+     */
+    public static final class Section {
+        private final FileChannel channel;
+        private final long position;
+        private final long length;
+
+        Section(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
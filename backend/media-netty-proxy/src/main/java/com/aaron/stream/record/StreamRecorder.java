@@ -0,0 +1,171 @@
+package com.aaron.stream.record;
+
+import com.aaron.stream.flv.FlvTag;
+import io.netty.buffer.ByteBuf;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the tags of a stream session to rolling segment files, each started on a key frame with the init tags,
+ * and indexes every key frame by wall clock time.
+ * <p>
+ * The tags are written as they are, with the session's timestamps. Writes go to the page cache and are flushed by
+ * the OS. A write error stops the recording of the session, the live stream goes on. Streams without video are
+ * not recorded. Not thread safe, called by one thread at a time: the thread producing the session's tags (the
+ * session thread, or its encoder thread while it transcodes), then the session thread to close it.
+ */
+@Slf4j
+public class StreamRecorder {
+    private final String key;
+    private final CameraRecording recording;
+    private final long segmentDuration;
+    private final long run = System.currentTimeMillis();
+
+    // Init tags, written at the start of every segment
+    private FlvTag fileHeader;
+    private FlvTag metadata;
+    private FlvTag videoConfig;
+    private FlvTag audioConfig;
+
+    private CameraRecording.Segment segment;
+    private FileChannel file;
+    private boolean failed;
+
+    /**
+     * @param key             session key
+     * @param recording       recording of the session's camera rendition
+     * @param segmentDuration milliseconds, a segment ends on the first key frame after it
+     */
+    StreamRecorder(String key, CameraRecording recording, long segmentDuration) {
+        this.key = key;
+        this.recording = recording;
+        this.segmentDuration = segmentDuration;
+    }
+
+    /**
+     * Record a tag, it's not retained unless it's an init tag
+     *
+     * @param tag live tag
+     */
+    public void onTag(FlvTag tag) {
+        if (failed) {
+            return;
+        }
+        try {
+            write(tag);
+        } catch (IOException e) {
+            log.warn("Stream session {} recording stopped：{}", key, e.getMessage());
+            failed = true;
+            finishSegment();
+        }
+    }
+
+    private void write(FlvTag tag) throws IOException {
+        if (tag.isInitTag()) {
+            setInitTag(tag);
+            if (segment != null && tag.type() != FlvTag.TYPE_HEADER) {
+                append(tag); // Changed mid-segment, e.g. after a reconnect
+            }
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (tag.isKeyFrame()) {
+            if (segment == null || now - segment.start >= segmentDuration) {
+                if (fileHeader == null || videoConfig == null) {
+                    return;
+                }
+                finishSegment();
+                startSegment(now);
+            }
+            long offset = segment.size;
+            append(tag);
+            recording.addKeyFrame(now, segment, offset);
+            return;
+        }
+        if (segment != null) {
+            append(tag);
+        }
+    }
+
+    private void startSegment(long now) throws IOException {
+        segment = recording.startSegment(run, now);
+        file = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        for (FlvTag tag : new FlvTag[]{fileHeader, metadata, videoConfig, audioConfig}) {
+            if (tag != null) {
+                append(tag);
+            }
+        }
+        segment.headerSize = (int) segment.size;
+    }
+
+    private void append(FlvTag tag) throws IOException {
+        ByteBuf content = tag.content();
+        int length = content.readableBytes();
+        long position = segment.size;
+        int written = 0;
+        while (written < length) {
+            written += content.getBytes(content.readerIndex() + written, file, position + written, length - written);
+        }
+        recording.addBytes(segment, length);
+    }
+
+    private void finishSegment() {
+        if (segment == null) {
+            return;
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.warn("Error close recording segment {}：{}", segment.path, e.getMessage());
+            }
+        }
+        recording.finish(segment);
+        segment = null;
+        file = null;
+    }
+
+    /**
+     * End the current segment and release the init tags
+     */
+    public void close() {
+        finishSegment();
+        fileHeader = release(fileHeader);
+        metadata = release(metadata);
+        videoConfig = release(videoConfig);
+        audioConfig = release(audioConfig);
+    }
+
+    private void setInitTag(FlvTag tag) {
+        tag.retain();
+        switch (tag.type()) {
+            case FlvTag.TYPE_HEADER:
+                release(fileHeader);
+                fileHeader = tag;
+                break;
+            case FlvTag.TYPE_SCRIPT:
+                release(metadata);
+                metadata = tag;
+                break;
+            case FlvTag.TYPE_VIDEO:
+                release(videoConfig);
+                videoConfig = tag;
+                break;
+            default:
+                release(audioConfig);
+                audioConfig = tag;
+                break;
+        }
+    }
+
+    private static FlvTag release(FlvTag tag) {
+        if (tag != null) {
+            tag.release();
+        }
+        return null;
+    }
+}
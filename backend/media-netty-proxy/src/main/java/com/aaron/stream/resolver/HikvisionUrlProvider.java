@@ -0,0 +1,20 @@
+package com.aaron.stream.resolver;
+
+import com.aaron.stream.utils.HikRest;
+
+/**
+ * The cameras' RTSP urls from the Hikvision platform (Artemis), the default
+ */
+public class HikvisionUrlProvider implements StreamUrlProvider {
+    public final static String NAME = "hikvision";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public String streamUrl(String cameraCode, int streamType) throws Exception {
+        return HikRest.getRtspUrl(cameraCode, streamType);
+    }
+}
@@ -0,0 +1,40 @@
+package com.aaron.stream.resolver;
+
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.session.LiveGrabber;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Every camera plays the same local media file in a loop at its own pace, for load tests without cameras. Each
+ * camera still has its own session, so the load grows with the cameras watched as it does in production.
+ */
+public class LoopingFileUrlProvider implements StreamUrlProvider {
+    public final static String NAME = "file";
+
+    private String streamUrl;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    /**
+     * @param properties {@code PROXY_RESOLVER_SOURCE} is the media file, e.g. an H.264/AAC FLV or MP4
+     */
+    @Override
+    public void init(ProxyProperties properties) throws Exception {
+        String source = properties.getResolverSource();
+        if (source == null || source.isBlank() || !Files.isReadable(Path.of(source.trim()))) {
+            throw new FileNotFoundException("Media file to loop not found: " + source);
+        }
+        streamUrl = LiveGrabber.LOOP_SCHEME + Path.of(source.trim()).toAbsolutePath();
+    }
+
+    @Override
+    public String streamUrl(String cameraCode, int streamType) {
+        return streamUrl;
+    }
+}
@@ -0,0 +1,34 @@
+package com.aaron.stream.resolver;
+
+import com.aaron.stream.config.ProxyProperties;
+
+/**
+ * Where the stream urls of the cameras come from, chosen with {@code PROXY_RESOLVER} by its name. Implementations
+ * other than the bundled ones are found with {@link java.util.ServiceLoader}, listed in
+ * {@code META-INF/services/com.aaron.stream.resolver.StreamUrlProvider} of a jar on the class path.
+ * <p>
+ * Lookups are cached and run on the resolver's own threads, so an implementation may block.
+ */
+public interface StreamUrlProvider {
+    /**
+     * Name {@code PROXY_RESOLVER} selects the implementation with
+     */
+    String name();
+
+    /**
+     * Called once before the first lookup
+     *
+     * @param properties proxy properties, {@code PROXY_RESOLVER_SOURCE} is the implementation's own setting
+     * @throws Exception if the implementation can't work with them
+     */
+    default void init(ProxyProperties properties) throws Exception {
+    }
+
+    /**
+     * @param cameraCode camera index code
+     * @param streamType {@link StreamUrlResolver#STREAM_MAIN} or {@link StreamUrlResolver#STREAM_SUB}
+     * @return url FFmpeg opens, {@code loop:} followed by a path plays a local file in a loop
+     * @throws Exception lookup error, e.g. an unknown camera
+     */
+    String streamUrl(String cameraCode, int streamType) throws Exception;
+}
@@ -0,0 +1,132 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.metrics.ProxyMetrics;
+import org.bytedeco.javacv.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decoded frames of a camera stream, handed to every {@link EncoderStage} attached: the transcoding session's own
+ * encoder, and those of the other renditions of the camera stream that transcode too, so one decode serves them
+ * all. The session thread decodes while each encoder runs on a thread of its own, so decoding and encoding overlap.
+ * <p>
+ * The images are copied into pooled frames, the grabber reuses its frame on the next grab. The slowest encoder sets
+ * the pace: while it holds every pooled frame the decoder waits, and drops the frame if none comes back in time.
+ */
+final class DecodeStage {
+    private final static int POOL_FRAMES = 4; // Being copied, being encoded, and queued for the encoders
+    private final static long POOL_WAIT_MILLIS = 1000;
+
+    private final String key;
+    private final String cameraCode;
+    private final int streamType;
+    private final int width;
+    private final int height;
+    private final int audioChannels;
+    private final boolean remuxable;
+    private final FramePool pool = new FramePool(POOL_FRAMES);
+    private final List<EncoderStage> encoders = new CopyOnWriteArrayList<>();
+    private boolean closed; // Guarded by this
+
+    /**
+     * @param key           session decoding
+     * @param cameraCode    camera index code
+     * @param streamType    stream type the session's rendition pulls
+     * @param width         source width
+     * @param height        source height
+     * @param audioChannels source audio channels
+     * @param remuxable     whether the source could be copied to a rendition it fits
+     */
+    DecodeStage(String key, String cameraCode, int streamType, int width, int height, int audioChannels,
+                boolean remuxable) {
+        this.key = key;
+        this.cameraCode = cameraCode;
+        this.streamType = streamType;
+        this.width = width;
+        this.height = height;
+        this.audioChannels = audioChannels;
+        this.remuxable = remuxable;
+    }
+
+    /**
+     * @param encoder encoder to hand the next frames to
+     * @return false if the decoder stopped
+     */
+    synchronized boolean attach(EncoderStage encoder) {
+        if (closed) {
+            return false;
+        }
+        encoders.add(encoder);
+        return true;
+    }
+
+    void detach(EncoderStage encoder) {
+        encoders.remove(encoder);
+    }
+
+    /**
+     * Hand a grabbed frame to the encoders, session thread only
+     *
+     * @param frame grabbed frame, reused by the grabber on the next grab
+     */
+    void publish(Frame frame) throws InterruptedException {
+        SharedFrame shared;
+        if (frame.image != null && frame.image.length == 1 && frame.image[0] instanceof ByteBuffer) {
+            Frame copy = pool.copy(frame, POOL_WAIT_MILLIS);
+            if (copy == null) {
+                ProxyMetrics.ENCODER_DROPPED_FRAMES.increment();
+                return;
+            }
+            shared = new SharedFrame(copy, pool);
+        } else if (frame.image != null || frame.samples != null) {
+            shared = new SharedFrame(frame.clone(), null); // Audio, small
+        } else {
+            return;
+        }
+        for (EncoderStage encoder : encoders) {
+            encoder.offer(shared);
+        }
+        shared.release();
+    }
+
+    /**
+     * The decoder stopped, the encoders end after their queued frames
+     */
+    synchronized void close() {
+        closed = true;
+        for (EncoderStage encoder : encoders) {
+            encoder.finish();
+        }
+        pool.close();
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String getCameraCode() {
+        return cameraCode;
+    }
+
+    int getStreamType() {
+        return streamType;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getAudioChannels() {
+        return audioChannels;
+    }
+
+    boolean isRemuxable() {
+        return remuxable;
+    }
+}
@@ -0,0 +1,161 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.metrics.ProxyMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Encodes the frames of a {@link DecodeStage} to one rendition, on a thread of its own. The video frames queued are
+ * bounded by the decoder's frame pool, and the whole queue by its size: an encoder that far behind loses the frames,
+ * audio included, rather than piling them up.
+ */
+@Slf4j
+final class EncoderStage implements Runnable {
+    private final static int QUEUE_FRAMES = 32; // The pool's video frames and the audio frames between them
+    private final static long STOP_CHECK_MILLIS = 500;
+    private final static SharedFrame END = new SharedFrame(null, null);
+
+    private final String key;
+    private final DecodeStage decoder;
+    private final FFmpegFrameRecorder recorder;
+    private final BooleanSupplier stopped;
+    private final LongConsumer onEncoded;
+    private final BlockingQueue<SharedFrame> queue = new ArrayBlockingQueue<>(QUEUE_FRAMES + 1); // And the end
+    private final CountDownLatch done = new CountDownLatch(1);
+    private boolean finished; // Guarded by this
+    private volatile Exception failure;
+
+    // Encoder thread only
+    private long firstTimestamp = -1; // The recorder counts the audio from its first sample, the video must match
+    private long lastFrameNumber = -1;
+
+    /**
+     * @param key       session encoding
+     * @param decoder   decoder the stage is attached to
+     * @param recorder  started recorder, used by the stage's thread until {@link #await()} returns
+     * @param stopped   whether the session is closed
+     * @param onEncoded called with the start of each frame's encode, in nanoseconds
+     */
+    EncoderStage(String key, DecodeStage decoder, FFmpegFrameRecorder recorder, BooleanSupplier stopped,
+                 LongConsumer onEncoded) {
+        this.key = key;
+        this.decoder = decoder;
+        this.recorder = recorder;
+        this.stopped = stopped;
+        this.onEncoded = onEncoded;
+    }
+
+    /**
+     * Queue a frame, decoder thread only
+     */
+    synchronized void offer(SharedFrame frame) {
+        if (finished) {
+            return;
+        }
+        if (queue.remainingCapacity() <= 1) {
+            ProxyMetrics.ENCODER_DROPPED_FRAMES.increment();
+            return;
+        }
+        frame.retain();
+        queue.add(frame);
+    }
+
+    /**
+     * The decoder stopped, encode the queued frames and end
+     */
+    synchronized void finish() {
+        if (!finished) {
+            queue.add(END);
+        }
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped.getAsBoolean()) {
+                SharedFrame frame = queue.poll(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == END) {
+                    break;
+                }
+                if (frame != null) {
+                    try {
+                        encode(frame.frame());
+                    } finally {
+                        frame.release();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            failure = e;
+            log.warn("Stream session {} encoder failed：{}", key, e.getMessage());
+        } finally {
+            decoder.detach(this);
+            drain();
+            done.countDown();
+        }
+    }
+
+    /**
+     * Wait until the stage's thread is done with the recorder
+     *
+     * @throws IOException the encoder's error
+     */
+    void await() throws IOException {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the encoder of " + key, e);
+        }
+        if (failure != null) {
+            throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+        }
+    }
+
+    private void encode(Frame frame) throws Exception {
+        if (firstTimestamp < 0) {
+            firstTimestamp = frame.timestamp;
+        }
+        long timestamp = frame.timestamp - firstTimestamp;
+        if (frame.image != null) {
+            // Frames above the output frame rate would repeat a frame number
+            long frameNumber = Math.round(timestamp * recorder.getFrameRate() / 1000000);
+            if (frameNumber <= lastFrameNumber) {
+                return;
+            }
+            lastFrameNumber = frameNumber;
+        }
+        long start = System.nanoTime();
+        recorder.setTimestamp(timestamp);
+        recorder.record(frame);
+        onEncoded.accept(start);
+    }
+
+    /**
+     * Give back the frames left in the queue, none is queued afterwards
+     */
+    private synchronized void drain() {
+        finished = true;
+        SharedFrame frame;
+        while ((frame = queue.poll()) != null) {
+            if (frame != END) {
+                frame.release();
+            }
+        }
+    }
+}
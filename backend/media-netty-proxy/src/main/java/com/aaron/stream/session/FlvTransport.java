@@ -0,0 +1,31 @@
+package com.aaron.stream.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+/**
+ * How the FLV bytes of a stream are framed on a viewer's channel
+ */
+public interface FlvTransport {
+    /**
+     * Write what precedes the FLV bytes, e.g. the response head
+     *
+     * @param channel viewer channel
+     */
+    void start(Channel channel);
+
+    /**
+     * Wrap a batch of FLV bytes in the channel's outbound message
+     *
+     * @param content FLV bytes, owned by the returned message
+     * @return message to write
+     */
+    Object wrap(ByteBuf content);
+
+    /**
+     * Write the end of the stream and close the channel
+     *
+     * @param channel viewer channel
+     */
+    void finish(Channel channel);
+}
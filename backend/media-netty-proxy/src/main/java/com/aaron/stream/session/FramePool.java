@@ -0,0 +1,119 @@
+package com.aaron.stream.session;
+
+import org.bytedeco.javacv.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Image frames of the decoder's size, reused for the copies handed to the encoders instead of allocating a frame per
+ * grab. Bounded: when the encoders hold every frame, the decoder waits for one to come back, as it would if it
+ * encoded the frames itself.
+ */
+final class FramePool {
+    private final int maxFrames;
+
+    // Guarded by this
+    private final Deque<Frame> free = new ArrayDeque<>();
+    private int allocated;
+    private int width;
+    private int height;
+    private int depth;
+    private int channels;
+    private int stride;
+    private boolean closed;
+
+    /**
+     * @param maxFrames frames allocated at most
+     */
+    FramePool(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * Copy a decoded image into a pooled frame
+     *
+     * @param source     grabbed frame with a packed image, reused by the grabber on the next grab
+     * @param waitMillis time to wait for a frame when every frame is in use
+     * @return copy, null if no frame came back in time
+     */
+    Frame copy(Frame source, long waitMillis) throws InterruptedException {
+        Frame frame = acquire(source, waitMillis);
+        if (frame == null) {
+            return null;
+        }
+        ByteBuffer from = ((ByteBuffer) source.image[0]).duplicate();
+        ByteBuffer to = ((ByteBuffer) frame.image[0]).duplicate();
+        from.clear().limit(Math.min(from.capacity(), to.capacity()));
+        to.clear();
+        to.put(from);
+        frame.keyFrame = source.keyFrame;
+        frame.timestamp = source.timestamp;
+        frame.streamIndex = source.streamIndex;
+        return frame;
+    }
+
+    /**
+     * Give back a frame acquired from the pool
+     */
+    synchronized void release(Frame frame) {
+        if (closed || !fits(frame)) {
+            allocated--;
+            frame.close();
+        } else {
+            free.push(frame);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Free the pooled frames, the ones in use are freed when they're given back
+     */
+    synchronized void close() {
+        closed = true;
+        freeAll();
+        notifyAll();
+    }
+
+    private synchronized Frame acquire(Frame source, long waitMillis) throws InterruptedException {
+        if (closed) {
+            return null;
+        }
+        if (!fits(source)) {
+            // The source changed size, the frames of the old size are freed as they come back
+            freeAll();
+            width = source.imageWidth;
+            height = source.imageHeight;
+            depth = source.imageDepth;
+            channels = source.imageChannels;
+            stride = source.imageStride;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        long remaining;
+        while (free.isEmpty() && allocated >= maxFrames && !closed
+                && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        Frame frame = closed ? null : free.poll();
+        if (frame == null && !closed && allocated < maxFrames) {
+            frame = new Frame(width, height, depth, channels, stride);
+            allocated++;
+        }
+        return frame;
+    }
+
+    private boolean fits(Frame frame) {
+        return frame.imageWidth == width && frame.imageHeight == height && frame.imageDepth == depth
+                && frame.imageChannels == channels && frame.imageStride == stride;
+    }
+
+    private void freeAll() {
+        Frame frame;
+        while ((frame = free.poll()) != null) {
+            allocated--;
+            frame.close();
+        }
+    }
+}
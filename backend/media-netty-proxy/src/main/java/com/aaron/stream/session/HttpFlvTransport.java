@@ -0,0 +1,39 @@
+package com.aaron.stream.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * HTTP-FLV, the stream is the body of a chunked response (a series of DATA frames over HTTP/2)
+ */
+public class HttpFlvTransport implements FlvTransport {
+    public static final HttpFlvTransport INSTANCE = new HttpFlvTransport();
+
+    private HttpFlvTransport() {
+    }
+
+    @Override
+    public void start(Channel channel) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        channel.write(response);
+    }
+
+    @Override
+    public Object wrap(ByteBuf content) {
+        return new DefaultHttpContent(content);
+    }
+
+    @Override
+    public void finish(Channel channel) {
+        channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(ChannelFutureListener.CLOSE);
+    }
+}
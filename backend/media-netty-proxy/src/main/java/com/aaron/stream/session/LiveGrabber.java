@@ -0,0 +1,78 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.cluster.ProxyCluster;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * FFmpegFrameGrabber Initial
+ */
+public class LiveGrabber extends FFmpegFrameGrabber {
+    private final static String BUFF_SIZE = "8096000";
+    /**
+     * Stream url prefix of a local file played in a loop, e.g. {@code loop:/data/sample.flv}
+     */
+    public final static String LOOP_SCHEME = "loop:";
+
+    /**
+     * @param filename      stream url
+     * @param timeoutMillis socket timeout, so an unreachable camera can't block the session forever
+     */
+    public LiveGrabber(String filename, long timeoutMillis) {
+        this(filename, timeoutMillis, 0, 0);
+    }
+
+    /**
+     * @param filename              stream url
+     * @param timeoutMillis         socket timeout, so an unreachable camera can't block the session forever
+     * @param probeSize             bytes read to find the stream parameters, 0 for FFmpeg's default
+     * @param analyzeDurationMillis stream duration read to find the stream parameters, 0 for FFmpeg's default
+     */
+    public LiveGrabber(String filename, long timeoutMillis, int probeSize, long analyzeDurationMillis) {
+        super(filename);
+        initLiveGrabber(filename, timeoutMillis);
+        if (probeSize > 0) {
+            super.setOption("probesize", String.valueOf(probeSize));
+        }
+        if (analyzeDurationMillis > 0) {
+            super.setOption("analyzeduration", String.valueOf(analyzeDurationMillis * 1000)); // In microseconds
+        }
+    }
+
+    /**
+     * Grabber of a stream url, or of a local file played in a loop for a {@code loop:} url
+     *
+     * @param filename              stream url
+     * @param timeoutMillis         socket timeout, so an unreachable camera can't block the session forever
+     * @param probeSize             bytes read to find the stream parameters, 0 for FFmpeg's default
+     * @param analyzeDurationMillis stream duration read to find the stream parameters, 0 for FFmpeg's default
+     * @return grabber to start
+     */
+    public static LiveGrabber of(String filename, long timeoutMillis, int probeSize, long analyzeDurationMillis) {
+        return filename.startsWith(LOOP_SCHEME)
+                ? new LoopingFileGrabber(filename, probeSize, analyzeDurationMillis)
+                : new LiveGrabber(filename, timeoutMillis, probeSize, analyzeDurationMillis);
+    }
+
+    /**
+     * Open without JavaCV's process wide lock, it's held for the whole connect and probe: one slow camera would
+     * hold up the opening of every other one, and two proxy nodes relaying each other's cameras would wait for each
+     * other until the timeout. Opening codecs is thread-safe in FFmpeg itself.
+     */
+    @Override
+    public void start(boolean findStreamInfo) throws Exception {
+        startUnsafe(findStreamInfo);
+    }
+
+    void initLiveGrabber(String filename, long timeoutMillis) {
+        String timeoutMicros = String.valueOf(timeoutMillis * 1000);
+        super.setVideoOption("vcodec", "copy");
+        super.setOption("buffer_size", BUFF_SIZE); // Set buffer size to improve video quality and reduce stuttering and artifacting
+        super.setOption("rtsp_transport", "tcp");
+        super.setOption("stimeout", timeoutMicros); // RTSP socket timeout, in microseconds
+        super.setOption("rw_timeout", timeoutMicros); // Read/write timeout of the other protocols, in microseconds
+        String relayHeaders = ProxyCluster.getInstance().relayHeaders(filename);
+        if (relayHeaders != null) {
+            super.setOption("headers", relayHeaders); // Another proxy node's stream
+        }
+    }
+}
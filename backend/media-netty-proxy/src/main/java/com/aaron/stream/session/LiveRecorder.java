@@ -0,0 +1,83 @@
+package com.aaron.stream.session;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FFmpegFrameRecorder Initial
+ */
+class LiveRecorder extends FFmpegFrameRecorder {
+    private static final int BITRATE = 1000000; // Reduce bitrate to decrease CPU load, e.g., 1000 kbps
+    private static final int FRAME_RATE = 30; // Adjust frame rate as needed, fps
+    private static final int GOP_SIZE = 30; // Set GOP size to one key frame every two seconds
+    private static final String FORMAT_FLV = "flv"; // Set encapsulation format
+
+    private static final int AUDIO_BITRATE = 192000; // Set bitrate, e.g., 192 kbps
+    private static final int SAMPLE_RATE = 44100; // Set sample rate
+    private static final int AUDIO_CHANNELS = 2; // Set the number of audio channels, here set to stereo
+
+    private static final Map<String, String> VIDEO_OPTION = new HashMap<>() {{
+        put("tune", "zerolatency"); // Reduce startup latency, see https://trac.ffmpeg.org/wiki/StreamingGuide)
+        put("preset", "ultrafast"); // 'ultrafast' has the lowest CPU usage
+        put("crf", "24"); // Constant Rate Factor (see: https://trac.ffmpeg.org/wiki/Encode/H.264)
+        // put("video_size", "640x480"); // Set resolution
+    }};
+
+    private static final Map<String, String> AUDIO_OPTION = new HashMap<>() {{
+        put("crf", "0");
+    }};
+
+    public LiveRecorder(OutputStream outputStream, int imageWidth, int imageHeight, int audioChannels, int encoderThreads) {
+        this(outputStream, imageWidth, imageHeight, audioChannels, encoderThreads, 0, 0);
+    }
+
+    /**
+     * Frames of another size than the image size are scaled
+     *
+     * @param frameRate    fps, 0 for the default
+     * @param videoBitrate bits per second, 0 for the default
+     */
+    public LiveRecorder(OutputStream outputStream, int imageWidth, int imageHeight, int audioChannels, int encoderThreads,
+                        int frameRate, int videoBitrate) {
+        super(outputStream, imageWidth, imageHeight, audioChannels);
+        initLiveRecorder(encoderThreads);
+        if (frameRate > 0) {
+            super.setFrameRate(frameRate);
+        }
+        if (videoBitrate > 0) {
+            // The bitrate alone is ignored with a CRF, it caps it through the VBV
+            super.setVideoBitrate(videoBitrate);
+            super.setVideoOption("maxrate", String.valueOf(videoBitrate));
+            super.setVideoOption("bufsize", String.valueOf(videoBitrate * 2));
+        }
+    }
+
+    void initLiveRecorder(int encoderThreads) {
+        // Setting video
+        for (Map.Entry<String, String> entry : VIDEO_OPTION.entrySet()) {
+            super.setVideoOption(entry.getKey(), entry.getValue());
+        }
+        super.setVideoOption("threads", String.valueOf(encoderThreads)); // Thread budget of this session, see SessionScheduler
+        super.setVideoBitrate(BITRATE);
+        super.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        super.setFormat(FORMAT_FLV);
+        super.setFrameRate(FRAME_RATE);
+        super.setGopSize(GOP_SIZE);
+        // super.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+        // super.setOption("color_range", "jpeg"); // Use "jpeg" for full range. Use "mpeg" for limited range.
+
+        // Setting audio
+        for (Map.Entry<String, String> entry : AUDIO_OPTION.entrySet()) {
+            super.setAudioOption(entry.getKey(), entry.getValue());
+        }
+        super.setAudioQuality(0);
+        super.setAudioBitrate(AUDIO_BITRATE);
+        super.setSampleRate(SAMPLE_RATE);
+        super.setAudioChannels(AUDIO_CHANNELS);
+        super.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+    }
+}
@@ -0,0 +1,39 @@
+package com.aaron.stream.session;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+
+import java.io.OutputStream;
+
+/**
+ * FFmpegFrameRecorder Initial for packet copy, repackages the camera's compressed packets into FLV without decoding
+ */
+class LiveRemuxer extends FFmpegFrameRecorder {
+    private static final String FORMAT_FLV = "flv"; // Set encapsulation format
+
+    public LiveRemuxer(OutputStream outputStream, FFmpegFrameGrabber grabber) {
+        super(outputStream, grabber.getImageWidth(), grabber.getImageHeight(), grabber.getAudioChannels());
+        super.setFormat(FORMAT_FLV);
+        super.setVideoCodec(grabber.getVideoCodec());
+        super.setAudioCodec(grabber.getAudioCodec());
+    }
+
+    /**
+     * Only H.264 video and AAC/MP3 audio (or none) can be played from FLV by the browser players,
+     * anything else (H.265, G.711, ...) has to be transcoded
+     *
+     * @param grabber started grabber
+     * @return true if the source can be copied as is
+     */
+    static boolean canRemux(FFmpegFrameGrabber grabber) {
+        return canRemux(grabber.getVideoCodec(), grabber.getAudioCodec());
+    }
+
+    static boolean canRemux(int videoCodec, int audioCodec) {
+        return videoCodec == avcodec.AV_CODEC_ID_H264
+                && (audioCodec == avcodec.AV_CODEC_ID_NONE
+                || audioCodec == avcodec.AV_CODEC_ID_AAC
+                || audioCodec == avcodec.AV_CODEC_ID_MP3);
+    }
+}
@@ -0,0 +1,139 @@
+package com.aaron.stream.session;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.Frame;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local media file played in a loop at its own pace, as a camera would send it: a source for load tests that needs
+ * no camera. The timestamps keep growing across the loops, so the viewers see one endless stream.
+ */
+class LoopingFileGrabber extends LiveGrabber {
+    private final static AVRational MICROSECONDS = avutil.av_make_q(1, 1000000);
+    private final static long DEFAULT_FRAME_MICROS = 40000; // A video packet without a duration lasts a 25 fps frame
+
+    private long startNanos = -1; // Wall clock time of the file's first timestamp
+    private long firstMicros = Long.MAX_VALUE; // First timestamp of the file
+    private long endMicros = Long.MIN_VALUE; // End of the latest packet or frame, the next loop starts there
+    private long offsetMicros; // Added to the file's timestamps, the length of the loops played so far
+    private boolean looped;
+    private boolean rewinding; // Frames grabbed while seeking back are the grabber's own
+
+    /**
+     * @param url                   {@link #LOOP_SCHEME} followed by the file path
+     * @param probeSize             bytes read to find the stream parameters, 0 for FFmpeg's default
+     * @param analyzeDurationMillis stream duration read to find the stream parameters, 0 for FFmpeg's default
+     */
+    LoopingFileGrabber(String url, int probeSize, long analyzeDurationMillis) {
+        super(url.substring(LOOP_SCHEME.length()), 0, probeSize, analyzeDurationMillis);
+    }
+
+    @Override
+    public synchronized AVPacket grabPacket() throws Exception {
+        AVPacket packet = super.grabPacket();
+        if (packet == null) {
+            int ret = avformat.avformat_seek_file(getFormatContext(), -1, Long.MIN_VALUE, 0, Long.MAX_VALUE,
+                    avformat.AVSEEK_FLAG_BACKWARD);
+            if (ret < 0 || !loop() || (packet = super.grabPacket()) == null) {
+                return null;
+            }
+        }
+
+        long dts = packet.dts() != avutil.AV_NOPTS_VALUE ? packet.dts() : packet.pts();
+        if (dts == avutil.AV_NOPTS_VALUE) {
+            return packet;
+        }
+        AVRational timeBase = getFormatContext().streams(packet.stream_index()).time_base();
+        long offset = avutil.av_rescale_q(offsetMicros, MICROSECONDS, timeBase);
+        packet.dts(dts + offset);
+        if (packet.pts() != avutil.AV_NOPTS_VALUE) {
+            packet.pts(packet.pts() + offset);
+        }
+        long micros = avutil.av_rescale_q(dts, timeBase, MICROSECONDS);
+        long duration = packet.duration() > 0
+                ? avutil.av_rescale_q(packet.duration(), timeBase, MICROSECONDS) : frameMicros();
+        pace(micros, duration);
+        return packet;
+    }
+
+    @Override
+    public synchronized Frame grabFrame(boolean doAudio, boolean doVideo, boolean doProcessing, boolean keyFrames,
+                                        boolean doData) throws Exception {
+        Frame frame = super.grabFrame(doAudio, doVideo, doProcessing, keyFrames, doData);
+        if (rewinding) {
+            return frame;
+        }
+        if (frame == null) {
+            rewinding = true;
+            try {
+                setTimestamp(0);
+            } finally {
+                rewinding = false;
+            }
+            if (!loop() || (frame = super.grabFrame(doAudio, doVideo, doProcessing, keyFrames, doData)) == null) {
+                return null;
+            }
+        }
+
+        long micros = frame.timestamp;
+        frame.timestamp += offsetMicros;
+        pace(micros, frameMicros());
+        return frame;
+    }
+
+    /**
+     * Timestamp of the last frame, across the loops
+     */
+    @Override
+    public long getTimestamp() {
+        return super.getTimestamp() + offsetMicros;
+    }
+
+    /**
+     * Start the next loop where the previous one ended
+     *
+     * @return false if the file has nothing to play
+     */
+    private boolean loop() {
+        if (endMicros == Long.MIN_VALUE) {
+            return false;
+        }
+        offsetMicros = endMicros - firstMicros;
+        looped = true;
+        return true;
+    }
+
+    /**
+     * Wait until the packet or frame is due, from the wall clock time the file started at
+     *
+     * @param micros   timestamp in the file
+     * @param duration microseconds the packet or frame lasts
+     */
+    private void pace(long micros, long duration) throws Exception {
+        if (!looped) {
+            firstMicros = Math.min(firstMicros, micros);
+        }
+        endMicros = Math.max(endMicros, micros + offsetMicros + duration);
+        if (startNanos < 0) {
+            startNanos = System.nanoTime() - TimeUnit.MICROSECONDS.toNanos(micros);
+        }
+        long wait = startNanos + TimeUnit.MICROSECONDS.toNanos(micros + offsetMicros) - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Exception("Interrupted", e);
+            }
+        }
+    }
+
+    private long frameMicros() {
+        double frameRate = getFrameRate();
+        return frameRate > 0 ? (long) (1000000 / frameRate) : DEFAULT_FRAME_MICROS;
+    }
+}
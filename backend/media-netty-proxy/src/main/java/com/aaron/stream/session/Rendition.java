@@ -0,0 +1,141 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.resolver.StreamUrlResolver;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * Version of a camera's stream a viewer asks for with {@code ?profile=}. Viewers of the same camera and rendition
+ * share one session.
+ * <p>
+ * The smaller renditions start from the camera's own sub-stream, which is copied as is when it's small enough, so
+ * a video wall doesn't cost a transcode per tile.
+ */
+public enum Rendition {
+    /**
+     * Main stream, copied when possible
+     */
+    FULL("full", StreamUrlResolver.STREAM_MAIN, 0, 0, 0),
+    /**
+     * The camera's sub-stream, copied when possible
+     */
+    SUB("sub", StreamUrlResolver.STREAM_SUB, 0, 0, 0),
+    /**
+     * Video wall tile: the sub-stream, scaled down to 640 pixels wide at 15 fps if it's larger
+     */
+    TILE("tile", StreamUrlResolver.STREAM_SUB, 640, 15, 400000);
+
+    private final String profile;
+    private final int streamType;
+    private final int maxWidth; // 0 keeps the source size
+    private final int frameRate; // Of a transcoded stream, 0 for the recorder's default
+    private final int videoBitrate; // Of a transcoded stream, 0 for the recorder's default
+
+    Rendition(String profile, int streamType, int maxWidth, int frameRate, int videoBitrate) {
+        this.profile = profile;
+        this.streamType = streamType;
+        this.maxWidth = maxWidth;
+        this.frameRate = frameRate;
+        this.videoBitrate = videoBitrate;
+    }
+
+    /**
+     * @param profile request parameter, null or empty for {@link #FULL}
+     * @return rendition, null if the profile is unknown
+     */
+    public static Rendition of(String profile) {
+        if (profile == null || profile.isEmpty()) {
+            return FULL;
+        }
+        for (Rendition rendition : values()) {
+            if (rendition.profile.equalsIgnoreCase(profile)) {
+                return rendition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Key of the session serving this rendition, the camera code itself for the main stream
+     *
+     * @param cameraCode camera index code
+     * @return session key
+     */
+    public String sessionKey(String cameraCode) {
+        return this == FULL ? cameraCode : cameraCode + "@" + profile;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * The other renditions a viewer may get instead when no session can be started for this one, the smaller ones
+     * first (the renditions are declared largest first)
+     */
+    Rendition[] fallbacks() {
+        Rendition[] renditions = values();
+        Rendition[] fallbacks = new Rendition[renditions.length - 1];
+        int i = 0;
+        for (int next = ordinal() + 1; next < renditions.length; next++) {
+            fallbacks[i++] = renditions[next];
+        }
+        for (int previous = ordinal() - 1; previous >= 0; previous--) {
+            fallbacks[i++] = renditions[previous];
+        }
+        return fallbacks;
+    }
+
+    /**
+     * Query string selecting this rendition, for the uris handed to a player, empty for the main stream
+     */
+    public String uriQuery() {
+        return this == FULL ? "" : "?profile=" + profile;
+    }
+
+    /**
+     * Hikvision stream type to ask the platform for
+     */
+    public int getStreamType() {
+        return streamType;
+    }
+
+    int getFrameRate() {
+        return frameRate;
+    }
+
+    int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    /**
+     * Whether the source is small enough to be copied
+     *
+     * @param grabber started grabber
+     * @return true or false
+     */
+    boolean fits(FFmpegFrameGrabber grabber) {
+        return fits(grabber.getImageWidth());
+    }
+
+    /**
+     * Whether a source of that width is small enough to be copied
+     */
+    boolean fits(int sourceWidth) {
+        return maxWidth == 0 || sourceWidth <= maxWidth;
+    }
+
+    /**
+     * Width of the transcoded stream
+     */
+    int width(int sourceWidth) {
+        return maxWidth == 0 || sourceWidth <= maxWidth ? sourceWidth : maxWidth;
+    }
+
+    /**
+     * Height of the transcoded stream, keeping the source aspect ratio, even for the encoder
+     */
+    int height(int sourceWidth, int sourceHeight) {
+        int width = width(sourceWidth);
+        return width == sourceWidth ? sourceHeight : (int) Math.round(sourceHeight * (double) width / sourceWidth / 2) * 2;
+    }
+}
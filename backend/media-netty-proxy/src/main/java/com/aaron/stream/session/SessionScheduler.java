@@ -0,0 +1,145 @@
+package com.aaron.stream.session;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs stream sessions on a bounded set of threads, one thread per session.
+ * <p>
+ * A session never finishes quickly, so there is no waiting queue: when every slot is taken new sessions are
+ * rejected right away and the viewer gets a 503 instead of a stream that never starts.
+ * <p>
+ * Transcoding costs far more than copying a stream, so the sessions that transcode have a budget of their own. A
+ * transcoding session encodes on a second thread while its own thread decodes.
+ */
+@Slf4j
+public class SessionScheduler {
+    private static final int MAX_ENCODER_THREADS = 8;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor encoders;
+    private final int maxSessions;
+    private final int encoderThreads;
+    private final int maxTranscodes;
+    private final Semaphore transcodes;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxSessions    concurrent sessions (each one a grab + remux/transcode pipeline)
+     * @param encoderThreads x264 threads per transcoding session, 0 to derive from the core count
+     * @param maxTranscodes  concurrent transcoding sessions, 0 for as many as sessions
+     */
+    SessionScheduler(int maxSessions, int encoderThreads, int maxTranscodes) {
+        this.maxSessions = maxSessions;
+        this.maxTranscodes = maxTranscodes > 0 ? Math.min(maxTranscodes, maxSessions) : maxSessions;
+        this.encoderThreads = encoderThreads > 0 ? encoderThreads : defaultEncoderThreads(this.maxTranscodes);
+        this.transcodes = new Semaphore(this.maxTranscodes);
+        this.executor = new ThreadPoolExecutor(0, maxSessions, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new DefaultThreadFactory("stream-session"));
+        this.encoders = new ThreadPoolExecutor(0, maxSessions, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new DefaultThreadFactory("stream-encoder"));
+        log.info("Session scheduler: max sessions {}, max transcodes {}, encoder threads per session {}",
+                maxSessions, this.maxTranscodes, this.encoderThreads);
+    }
+
+    /**
+     * Split the cores between the sessions that can transcode at the same time
+     */
+    private static int defaultEncoderThreads(int maxTranscodes) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(MAX_ENCODER_THREADS, cores / maxTranscodes));
+    }
+
+    /**
+     * Start the session if a slot is free
+     *
+     * @param session session to run
+     * @return false if the scheduler is at capacity
+     */
+    boolean trySubmit(StreamSession session) {
+        try {
+            executor.execute(session);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("Session scheduler at capacity ({} sessions), rejecting {}", maxSessions, session.getKey());
+            return false;
+        }
+    }
+
+    /**
+     * Run the encoder of a transcoding session beside its decoder
+     *
+     * @param encoder encoder stage
+     * @return false if no thread is left, sessions are bounded by the same limit
+     */
+    boolean tryStartEncoder(Runnable encoder) {
+        try {
+            encoders.execute(encoder);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether a session could be started now, it may be rejected anyway by the time it is
+     *
+     * @return true or false
+     */
+    boolean hasCapacity() {
+        return executor.getActiveCount() < maxSessions;
+    }
+
+    /**
+     * Take a transcode slot if one is left, it must be given back with {@link #releaseTranscode()}
+     *
+     * @return false if the transcode budget is used up
+     */
+    boolean tryAcquireTranscode() {
+        return transcodes.tryAcquire();
+    }
+
+    void releaseTranscode() {
+        transcodes.release();
+    }
+
+    /**
+     * Whether a transcode slot is left now, it may be taken anyway by the time it's asked for
+     */
+    boolean hasTranscodeCapacity() {
+        return transcodes.availablePermits() > 0;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getEncoderThreads() {
+        return encoderThreads;
+    }
+
+    public int getMaxTranscodes() {
+        return maxTranscodes;
+    }
+
+    public int getActiveTranscodes() {
+        return maxTranscodes - transcodes.availablePermits();
+    }
+
+    public int getActiveSessions() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,42 @@
+package com.aaron.stream.session;
+
+import org.bytedeco.javacv.Frame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decoded frame handed to several encoders, given back to its pool, or freed, when the last of them is done with it
+ */
+final class SharedFrame {
+    private final Frame frame;
+    private final FramePool pool; // Null for a frame of its own
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * @param frame frame, held by the caller until it releases it
+     * @param pool  pool the frame came from, null to free it at the end
+     */
+    SharedFrame(Frame frame, FramePool pool) {
+        this.frame = frame;
+        this.pool = pool;
+    }
+
+    Frame frame() {
+        return frame;
+    }
+
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    void release() {
+        if (refs.decrementAndGet() > 0) {
+            return;
+        }
+        if (pool != null) {
+            pool.release(frame);
+        } else {
+            frame.close();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.metrics.ProxyMetrics;
+import com.aaron.stream.utils.KeyedPermits;
+import com.aaron.stream.utils.ProxyInit;
+import com.aaron.stream.hls.HlsPackager;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Registry of live stream sessions, one per camera and rendition, shared by all viewers of that rendition.
+ * <p>
+ * Every session pulls its camera, and cameras reject more than a few concurrent streams, so the sessions and
+ * snapshot grabs of a camera are bounded. When no session can be started for a viewer (the camera or the scheduler
+ * is at its limit) it gets the running session of another rendition of the camera if there is one.
+ * <p>
+ * A camera whose stream can't be copied (e.g. H.265) is known from a previous open to need a transcode: while the
+ * transcode budget is used up, its new sessions are refused before the camera is opened.
+ */
+@Slf4j
+public class StreamHub {
+    private final static ProxyProperties PROXY_PROPERTIES = ProxyInit.getProxyProperties();
+    private final static StreamHub INSTANCE = new StreamHub(
+            new SessionScheduler(PROXY_PROPERTIES.getMaxSessions(), PROXY_PROPERTIES.getEncoderThreads(),
+                    PROXY_PROPERTIES.getMaxTranscodes()),
+            PROXY_PROPERTIES.getSessionIdleGrace(), PROXY_PROPERTIES.getMaxCameraPulls());
+
+    private final Map<String, StreamSession> sessions = new ConcurrentHashMap<>();
+    // By session key, camera and rendition: the renditions of a camera may pull different streams of it
+    private final Map<String, StreamParams> streamParams = new ConcurrentHashMap<>();
+    private final Map<String, DecodeStage> decoders = new ConcurrentHashMap<>(); // Per camera stream type
+    private final SessionScheduler scheduler;
+    private final KeyedPermits cameraPulls; // Sessions and snapshot grabs per camera code
+    private final ScheduledExecutorService idleScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final long idleGraceSeconds;
+
+    /**
+     * @param scheduler        runs the sessions
+     * @param idleGraceSeconds seconds a session stays open after its last viewer leaves
+     * @param maxCameraPulls   concurrent sessions and snapshot grabs per camera, 0 for no limit
+     */
+    StreamHub(SessionScheduler scheduler, long idleGraceSeconds, int maxCameraPulls) {
+        this.scheduler = scheduler;
+        this.idleGraceSeconds = idleGraceSeconds;
+        this.cameraPulls = new KeyedPermits(maxCameraPulls);
+    }
+
+    public static StreamHub getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Subscribe a channel to the camera rendition's session, starting the session if it's not running yet
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @param streamUrl  Streaming address of the rendition's source, only used when a new session is started
+     * @param channel    viewer channel, the HTTP response is written by the session
+     * @param transport  framing of the stream on the channel
+     * @return false if a new session was needed but none could be started or joined, nothing has been written then
+     */
+    public boolean subscribe(String cameraCode, Rendition rendition, String streamUrl, Channel channel, FlvTransport transport) {
+        return join(cameraCode, rendition, streamUrl, channel.alloc(), subscriber(channel, transport)) != null;
+    }
+
+    /**
+     * Subscribe a channel to a running session of the camera, no stream url is needed then: the rendition's session,
+     * or another rendition's session if no new session could be started
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @param channel    viewer channel, the HTTP response is written by the session
+     * @param transport  framing of the stream on the channel
+     * @return false if there is no session to join, nothing has been written then
+     */
+    public boolean subscribeRunning(String cameraCode, Rendition rendition, Channel channel, FlvTransport transport) {
+        return findRunning(cameraCode, rendition, subscriber(channel, transport)) != null;
+    }
+
+    /**
+     * Whether a new session of the camera rendition could be started now, so a viewer that would be rejected anyway
+     * is answered before its stream url is looked up
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @return true or false, it may be rejected anyway by the time it's started
+     */
+    public boolean canStart(String cameraCode, Rendition rendition) {
+        return cameraPulls.isAvailable(cameraCode) && scheduler.hasCapacity()
+                && !overTranscodeBudget(rendition.sessionKey(cameraCode));
+    }
+
+    /**
+     * Whether the session would have to transcode, as far as the last open of the camera tells, and no transcode
+     * slot is left
+     *
+     * @param key session key
+     * @return false if the stream is unknown
+     */
+    private boolean overTranscodeBudget(String key) {
+        StreamParams params = streamParams.get(key);
+        return params != null && !(PROXY_PROPERTIES.isPassthrough() && params.isRemuxable())
+                && !scheduler.hasTranscodeCapacity();
+    }
+
+    /**
+     * Take one of the camera's pulls for a connection outside the sessions (e.g. a snapshot grab), it must be given
+     * back with {@link #releasePull}
+     *
+     * @param cameraCode camera index code
+     * @return false if the camera is at its limit
+     */
+    public boolean tryAcquirePull(String cameraCode) {
+        if (cameraPulls.tryAcquire(cameraCode)) {
+            return true;
+        }
+        ProxyMetrics.UPSTREAM_REJECTED.increment();
+        return false;
+    }
+
+    public void releasePull(String cameraCode) {
+        cameraPulls.release(cameraCode);
+    }
+
+    /**
+     * HLS output of the camera rendition's session, starting the session if it's not running yet
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @param streamUrl  Streaming address of the rendition's source, only used when a new session is started
+     * @param allocator  allocator of a new session
+     * @return packager, null if a new session was needed but none could be started or joined
+     */
+    public HlsPackager watchHls(String cameraCode, Rendition rendition, String streamUrl, ByteBufAllocator allocator) {
+        return join(cameraCode, rendition, streamUrl, allocator, StreamSession::watchHls);
+    }
+
+    /**
+     * HLS output of a running session of the camera, no stream url is needed then: the rendition's session, or
+     * another rendition's session if no new session could be started
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @return packager, null if there is no session to watch
+     */
+    public HlsPackager findHls(String cameraCode, Rendition rendition) {
+        return findRunning(cameraCode, rendition, StreamSession::watchHls);
+    }
+
+    /**
+     * Last key frame of a running session of the camera: the rendition's session, or another rendition's session if
+     * the camera can't be opened for a snapshot
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @return FLV file of the video sequence header and the key frame, null if there is no session or no key frame
+     */
+    public byte[] keyFrameFile(String cameraCode, Rendition rendition) {
+        StreamSession session = sessions.get(rendition.sessionKey(cameraCode));
+        byte[] file = session != null ? session.keyFrameFile() : null;
+        return file != null || cameraPulls.isAvailable(cameraCode) ? file
+                : joinOther(cameraCode, rendition, StreamSession::keyFrameFile);
+    }
+
+    private static Function<StreamSession, StreamSession> subscriber(Channel channel, FlvTransport transport) {
+        return session -> session.subscribe(channel, transport) ? session : null;
+    }
+
+    /**
+     * Join the camera rendition's session, starting it if it's not running yet
+     *
+     * @param viewer joins the session, returns null if the session is closing
+     * @return what the viewer returned, null if no session could be started or joined
+     */
+    private <T> T join(String cameraCode, Rendition rendition, String streamUrl, ByteBufAllocator allocator,
+                       Function<StreamSession, T> viewer) {
+        String key = rendition.sessionKey(cameraCode);
+        while (true) {
+            StreamSession session = sessions.get(key);
+            if (session == null && (session = start(cameraCode, rendition, streamUrl, allocator)) == null
+                    && (session = sessions.get(key)) == null) {
+                return joinOther(cameraCode, rendition, viewer);
+            }
+            T joined = viewer.apply(session);
+            if (joined != null) {
+                return joined;
+            }
+            // The session is closing, drop it and open a new one
+            sessions.remove(key, session);
+        }
+    }
+
+    /**
+     * Start the camera rendition's session, unless another viewer just did
+     *
+     * @return session, null if the camera or the scheduler is at its limit
+     */
+    private StreamSession start(String cameraCode, Rendition rendition, String streamUrl, ByteBufAllocator allocator) {
+        String key = rendition.sessionKey(cameraCode);
+        if (overTranscodeBudget(key)) {
+            log.warn("Over the transcode budget, not starting {}", key);
+            return null;
+        }
+        if (!tryAcquirePull(cameraCode)) {
+            log.warn("Camera {} at its limit of {} pulls, not starting {}", cameraCode, cameraPulls.getMaxPermits(), key);
+            return null;
+        }
+        StreamSession created = new StreamSession(cameraCode, rendition, streamUrl, this, allocator);
+        StreamSession session = sessions.putIfAbsent(key, created);
+        if (session != null) {
+            cameraPulls.release(cameraCode);
+            return session;
+        }
+        if (!scheduler.trySubmit(created)) {
+            sessions.remove(key, created);
+            cameraPulls.release(cameraCode);
+            return null;
+        }
+        log.info("Stream session {} starting", key);
+        return created;
+    }
+
+    /**
+     * Join the camera rendition's session if it's running, or another rendition's session if no new session could
+     * be started
+     */
+    private <T> T findRunning(String cameraCode, Rendition rendition, Function<StreamSession, T> viewer) {
+        StreamSession session = sessions.get(rendition.sessionKey(cameraCode));
+        T joined = session != null ? viewer.apply(session) : null;
+        return joined != null || canStart(cameraCode, rendition) ? joined : joinOther(cameraCode, rendition, viewer);
+    }
+
+    /**
+     * Over budget, join a running session of another rendition of the camera, the smaller ones first
+     *
+     * @return what the viewer returned, null if there is none
+     */
+    private <T> T joinOther(String cameraCode, Rendition rendition, Function<StreamSession, T> viewer) {
+        for (Rendition other : rendition.fallbacks()) {
+            StreamSession session = sessions.get(other.sessionKey(cameraCode));
+            T joined = session != null ? viewer.apply(session) : null;
+            if (joined != null) {
+                ProxyMetrics.DEGRADED.increment();
+                log.info("Over budget for {}, joined {} instead", rendition.sessionKey(cameraCode), session.getKey());
+                return joined;
+            }
+        }
+        return null;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Sessions still opening their camera, their viewers wait for the stream. There is no queue of sessions waiting
+     * for a thread, so this is where the viewers wait when the cameras or the platform are slow.
+     */
+    public int getOpeningCount() {
+        int opening = 0;
+        for (StreamSession session : sessions.values()) {
+            if (!session.isOpened()) {
+                opening++;
+            }
+        }
+        return opening;
+    }
+
+    public Collection<StreamSession> getSessions() {
+        return sessions.values();
+    }
+
+    public SessionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Parameters the camera rendition's stream was last opened with
+     *
+     * @param key session key
+     * @return parameters, null if unknown
+     */
+    StreamParams getStreamParams(String key) {
+        return streamParams.get(key);
+    }
+
+    void putStreamParams(String key, StreamParams params) {
+        streamParams.put(key, params);
+    }
+
+    void invalidateStreamParams(String key) {
+        streamParams.remove(key);
+    }
+
+    /**
+     * Offer the frames a transcoding session decodes to the other renditions of its camera stream, unless another
+     * session already does
+     */
+    void putDecoder(DecodeStage decoder) {
+        decoders.putIfAbsent(decoderKey(decoder.getCameraCode(), decoder.getStreamType()), decoder);
+    }
+
+    void removeDecoder(DecodeStage decoder) {
+        decoders.remove(decoderKey(decoder.getCameraCode(), decoder.getStreamType()), decoder);
+    }
+
+    /**
+     * Decoder of the camera stream, running in a transcoding session
+     *
+     * @param cameraCode camera index code
+     * @param streamType Hikvision stream type
+     * @return decoder, null if no session decodes the camera stream
+     */
+    DecodeStage findDecoder(String cameraCode, int streamType) {
+        return decoders.get(decoderKey(cameraCode, streamType));
+    }
+
+    private static String decoderKey(String cameraCode, int streamType) {
+        return cameraCode + "#" + streamType;
+    }
+
+    ScheduledFuture<?> scheduleIdleClose(StreamSession session) {
+        return idleScheduler.schedule(session::closeIfIdle, idleGraceSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The session is closed, it no longer pulls its camera
+     */
+    void remove(StreamSession session) {
+        sessions.remove(session.getKey(), session);
+        cameraPulls.release(session.getCameraCode());
+    }
+}
@@ -0,0 +1,56 @@
+package com.aaron.stream.session;
+
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * Stream parameters a camera was opened with, so the next open can trust them and probe briefly. The frame rate is
+ * only an estimate of the probe, it doesn't tell a stream changed.
+ */
+@Value
+class StreamParams {
+    int videoCodec;
+    int width;
+    int height;
+    @EqualsAndHashCode.Exclude
+    double frameRate;
+    int audioCodec;
+    int audioChannels;
+    int sampleRate;
+
+    /**
+     * @param grabber started grabber
+     * @return parameters the grabber found
+     */
+    static StreamParams of(FFmpegFrameGrabber grabber) {
+        return new StreamParams(grabber.getVideoCodec(), grabber.getImageWidth(), grabber.getImageHeight(),
+                grabber.getFrameRate(), grabber.getAudioCodec(), grabber.getAudioChannels(), grabber.getSampleRate());
+    }
+
+    /**
+     * Video with a size, and audio with a layout if there is audio
+     */
+    boolean isComplete() {
+        return videoCodec != avcodec.AV_CODEC_ID_NONE && width > 0 && height > 0
+                && (audioCodec == avcodec.AV_CODEC_ID_NONE || audioChannels > 0 && sampleRate > 0);
+    }
+
+    /**
+     * Complete, and no stream the camera had before is missing. A short probe may end before the first audio packet.
+     *
+     * @param known parameters of a previous open
+     * @return true or false
+     */
+    boolean isCompleteFor(StreamParams known) {
+        return isComplete() && (known.audioCodec == avcodec.AV_CODEC_ID_NONE || audioCodec != avcodec.AV_CODEC_ID_NONE);
+    }
+
+    /**
+     * Whether the stream can be copied as is, to a rendition it fits or when no transcode slot is left
+     */
+    boolean isRemuxable() {
+        return LiveRemuxer.canRemux(videoCodec, audioCodec);
+    }
+}
@@ -0,0 +1,686 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.cluster.ProxyCluster;
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.flv.FlvTag;
+import com.aaron.stream.flv.FlvTagOutputStream;
+import com.aaron.stream.flv.GopCache;
+import com.aaron.stream.hls.HlsPackager;
+import com.aaron.stream.hls.SegmentCache;
+import com.aaron.stream.metrics.ProxyMetrics;
+import com.aaron.stream.record.RecordingStore;
+import com.aaron.stream.record.StreamRecorder;
+import com.aaron.stream.resolver.StreamUrlResolver;
+import com.aaron.stream.utils.ProxyInit;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FFmpegLogCallback;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One grab/transcode session of a camera rendition, fanned out to every subscribed channel.
+ * <p>
+ * When the camera stream is lost after it was opened, it is reopened with exponential backoff and full jitter for
+ * up to the reconnect window. The viewers stay connected: the stream continues with the timestamps following the
+ * last tag, from a key frame, so they only see a freeze.
+ * <p>
+ * HLS viewers don't hold a connection: the first playlist request adds an {@link HlsPackager} to the session, and
+ * the session stays open while the playlist keeps being requested.
+ * <p>
+ * When recording is enabled, the session's tags are also written to disk for replay.
+ * <p>
+ * The source of a session may be another proxy node's stream of the camera ({@link ProxyCluster}). It's copied
+ * as is, and reopened on the same node when lost: pulling the camera here instead would defeat the cluster.
+ * <p>
+ * A session that would transcode while the scheduler's transcode budget is used up copies the source as is instead
+ * when it can, e.g. a tile gets the camera's sub-stream unscaled, else its viewers get a 503.
+ * <p>
+ * A transcoding session decodes on its own thread and encodes on an encoder thread ({@link DecodeStage}). A session
+ * that would transcode the camera stream another session already decodes encodes that session's frames instead of
+ * pulling the camera again, and takes over the pull when that session ends.
+ */
+@Slf4j
+public class StreamSession implements Runnable {
+    private final static ProxyProperties PROXY_PROPERTIES = ProxyInit.getProxyProperties();
+    private final static int RESUME_TIMESTAMP_GAP = 40; // Milliseconds between the last tag and the resumed stream
+
+    private final String key;
+    private final String cameraCode;
+    private final Rendition rendition;
+    private final StreamHub hub;
+    private final ByteBufAllocator allocator;
+    private String streamUrl; // Replaced by a fresh url if it can't be opened
+    private final LongAdder framesGrabbed = new LongAdder();
+    private final LongAdder framesEncoded = new LongAdder();
+    private final LongAdder droppedTags = new LongAdder();
+
+    // Guarded by this
+    private final List<StreamSubscriber> subscribers = new ArrayList<>();
+    private final GopCache gopCache = new GopCache(
+            PROXY_PROPERTIES.getGopCacheMaxBytes(), PROXY_PROPERTIES.getGopCacheTotalBytes());
+    private ScheduledFuture<?> idleFuture;
+    private boolean opened;
+    private volatile boolean closed;
+    private int lastTimestamp; // Of the media tags, continued on resume
+    private HlsPackager hlsPackager;
+    private long hlsRequestNanos; // Last playlist request
+    private StreamRecorder recording; // Thread of the tags: the encoder's while transcoding, back after await()
+    private boolean transcoding; // Holds a transcode slot, session thread only
+    private boolean overBudget; // Closed for want of a transcode slot
+
+    StreamSession(String cameraCode, Rendition rendition, String streamUrl, StreamHub hub, ByteBufAllocator allocator) {
+        this.key = rendition.sessionKey(cameraCode);
+        this.cameraCode = cameraCode;
+        this.rendition = rendition;
+        this.streamUrl = streamUrl;
+        this.hub = hub;
+        this.allocator = allocator;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getCameraCode() {
+        return cameraCode;
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public long getFramesGrabbed() {
+        return framesGrabbed.sum();
+    }
+
+    public long getFramesEncoded() {
+        return framesEncoded.sum();
+    }
+
+    public long getDroppedTags() {
+        return droppedTags.sum();
+    }
+
+    public synchronized boolean isOpened() {
+        return opened;
+    }
+
+    /**
+     * Bytes still queued for the viewer furthest behind
+     */
+    public synchronized long getMaxPendingBytes() {
+        long max = 0;
+        for (StreamSubscriber subscriber : subscribers) {
+            max = Math.max(max, subscriber.getPendingBytes());
+        }
+        return max;
+    }
+
+    /**
+     * Viewers too slow for the stream, their frames are being dropped
+     */
+    public synchronized int getLaggingViewers() {
+        int lagging = 0;
+        for (StreamSubscriber subscriber : subscribers) {
+            if (subscriber.isDropping()) {
+                lagging++;
+            }
+        }
+        return lagging;
+    }
+
+    /**
+     * Add a viewer. Once the camera is open, the cached FLV header, metadata and last GOP are
+     * replayed to it first, so it renders at once.
+     *
+     * @param channel   viewer channel
+     * @param transport framing of the stream on the channel
+     * @return false if the session is closing, the caller should open a new one
+     */
+    boolean subscribe(Channel channel, FlvTransport transport) {
+        StreamSubscriber subscriber = new StreamSubscriber(channel, transport, PROXY_PROPERTIES.getMaxLag(), droppedTags);
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (idleFuture != null) {
+                idleFuture.cancel(false);
+                idleFuture = null;
+            }
+            subscribers.add(subscriber);
+            if (opened) {
+                start(subscriber);
+            } else {
+                subscriber.awaitStart(PROXY_PROPERTIES.getOpenTimeout());
+            }
+        }
+        channel.closeFuture().addListener(future -> unsubscribe(subscriber));
+        return true;
+    }
+
+    /**
+     * HLS output of the session, started with the cached init tags and GOP on the first call. Every call keeps the
+     * session open for the idle grace period.
+     *
+     * @return packager, null if the session is closing, the caller should open a new one
+     */
+    synchronized HlsPackager watchHls() {
+        if (closed) {
+            return null;
+        }
+        hlsRequestNanos = System.nanoTime();
+        if (hlsPackager == null) {
+            hlsPackager = new HlsPackager(key, rendition.uriQuery(), SegmentCache.getInstance(), allocator,
+                    PROXY_PROPERTIES.getHlsPartDuration(), PROXY_PROPERTIES.getHlsSegmentDuration());
+            gopCache.replay(hlsPackager::onTag);
+            log.info("Stream session {} serving HLS", key);
+        }
+        if (subscribers.isEmpty() && idleFuture == null) {
+            idleFuture = hub.scheduleIdleClose(this);
+        }
+        return hlsPackager;
+    }
+
+    /**
+     * FLV file of the last key frame, for a snapshot
+     *
+     * @return file bytes, null if no key frame is cached
+     */
+    synchronized byte[] keyFrameFile() {
+        return closed ? null : gopCache.keyFrameFile();
+    }
+
+    private void start(StreamSubscriber subscriber) {
+        if (!subscriber.start()) {
+            return;
+        }
+        gopCache.replay(subscriber::offerReplay);
+    }
+
+    /**
+     * The camera is open and the FLV header is written, start the pending viewers
+     */
+    private synchronized void onOpened() {
+        if (opened) {
+            return;
+        }
+        opened = true;
+        for (StreamSubscriber subscriber : subscribers) {
+            start(subscriber);
+        }
+    }
+
+    private void unsubscribe(StreamSubscriber subscriber) {
+        synchronized (this) {
+            if (!subscribers.remove(subscriber) || !subscribers.isEmpty() || closed) {
+                return;
+            }
+            idleFuture = hub.scheduleIdleClose(this);
+        }
+        log.info("Stream session {} has no subscribers, closing after grace period", key);
+    }
+
+    /**
+     * Close the session if nobody subscribed during the grace period
+     */
+    void closeIfIdle() {
+        synchronized (this) {
+            idleFuture = null;
+            if (!subscribers.isEmpty()) {
+                return;
+            }
+            if (hlsPackager != null && System.nanoTime() - hlsRequestNanos
+                    < TimeUnit.SECONDS.toNanos(PROXY_PROPERTIES.getSessionIdleGrace())) {
+                idleFuture = hub.scheduleIdleClose(this);
+                return;
+            }
+            closed = true;
+            notifyAll(); // Stop waiting for a reconnect
+        }
+        log.info("Stream session {} idle, closing", key);
+    }
+
+    @Override
+    public void run() {
+        FFmpegLogCallback.set();
+        if (ProxyCluster.getInstance().isRelayUrl(streamUrl)) {
+            ProxyMetrics.CLUSTER_RELAYS.increment();
+        } else {
+            recording = RecordingStore.getInstance().recorder(key); // The owner of a relayed camera records it
+        }
+
+        try {
+            // Once the shared decoder stops, the session goes on with a grabber of its own
+            boolean resumed = encodeShared();
+            FFmpegFrameGrabber grabber = closed ? null : resumed ? reopen() : open();
+            while (grabber != null) {
+                try {
+                    stream(grabber, resumed);
+                    if (!closed) {
+                        log.warn("Stream session {} source ended", key);
+                    }
+                } catch (IOException e) {
+                    if (!opened) {
+                        throw e;
+                    }
+                    log.warn("Stream session {} source lost：{}", key, e.getMessage());
+                } finally {
+                    release(grabber);
+                }
+                grabber = closed ? null : reconnect();
+                resumed = true;
+            }
+        } catch (IOException e) {
+            log.error("Error process stream session {}：", key, e);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stream from the opened camera until it ends or the session is closed
+     *
+     * @param grabber started grabber
+     * @param resumed the viewers already got the stream from a previous grabber
+     */
+    private void stream(FFmpegFrameGrabber grabber, boolean resumed) throws IOException {
+        String codecs = codecName(grabber.getVideoCodec()) + "/" + codecName(grabber.getAudioCodec());
+        try (FlvTagOutputStream outputStream = resumed
+                ? new FlvTagOutputStream(allocator, this::onTag, lastTimestamp + RESUME_TIMESTAMP_GAP)
+                : new FlvTagOutputStream(allocator, this::onTag)) {
+            boolean canRemux = PROXY_PROPERTIES.isPassthrough() && LiveRemuxer.canRemux(grabber);
+            if (canRemux && rendition.fits(grabber)) {
+                releaseTranscode(); // E.g. the camera was reconfigured, or the shared decoder's source was copied
+                log.info("Stream session {} remuxing {}", key, codecs);
+                remux(grabber, outputStream, resumed);
+            } else if (acquireTranscode()) {
+                log.info("Stream session {} transcoding {}", key, codecs);
+                transcode(grabber, outputStream, resumed, canRemux);
+            } else if (canRemux) {
+                ProxyMetrics.DEGRADED.increment();
+                log.warn("Stream session {} over the transcode budget, remuxing {} as is", key, codecs);
+                remux(grabber, outputStream, resumed);
+            } else {
+                overBudget = true;
+                closed = true;
+                log.warn("Stream session {} over the transcode budget, {} can't be remuxed", key, codecs);
+            }
+        }
+    }
+
+    /**
+     * Reopen the lost camera stream until it succeeds, the session closes or the reconnect window is over. The delay
+     * before each attempt is random up to a bound doubling every time, so the sessions of cameras lost together
+     * (e.g. behind the same switch) don't all hit the platform and the cameras at once.
+     *
+     * @return started grabber, null to give up
+     */
+    private FFmpegFrameGrabber reconnect() {
+        if (PROXY_PROPERTIES.getReconnectWindow() <= 0) {
+            return null;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROXY_PROPERTIES.getReconnectWindow());
+        long backoff = PROXY_PROPERTIES.getReconnectBackoff();
+        for (int attempt = 1; ; attempt++) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                log.warn("Stream session {} not reopened within the reconnect window", key);
+                return null;
+            }
+            if (!sleep(Math.min(ThreadLocalRandom.current().nextLong(backoff + 1), remaining))) {
+                return null;
+            }
+
+            ProxyMetrics.UPSTREAM_RECONNECTS.increment();
+            try {
+                FFmpegFrameGrabber grabber = open();
+                log.info("Stream session {} reopened after {} attempt(s)", key, attempt);
+                return grabber;
+            } catch (IOException e) {
+                log.warn("Error reopen stream session {}：{}", key, e.getMessage());
+            }
+            backoff = Math.min(backoff * 2, PROXY_PROPERTIES.getReconnectMaxBackoff());
+        }
+    }
+
+    /**
+     * Open the camera right away when the shared decoder stopped, else as after a lost stream
+     *
+     * @return started grabber, null to give up
+     */
+    private FFmpegFrameGrabber reopen() {
+        try {
+            return open();
+        } catch (IOException e) {
+            log.warn("Error reopen stream session {}：{}", key, e.getMessage());
+            return reconnect();
+        }
+    }
+
+    /**
+     * Wait unless the session is closed meanwhile
+     *
+     * @return false if the session is closed
+     */
+    private synchronized boolean sleep(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long remaining;
+        while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !closed;
+    }
+
+    /**
+     * Start the grabber, if the url can't be opened (e.g. its token expired) retry once with a fresh url. Another
+     * node's stream has no other url.
+     */
+    private FFmpegFrameGrabber open() throws IOException {
+        try {
+            return start();
+        } catch (FrameGrabber.Exception e) {
+            if (ProxyCluster.getInstance().isRelayUrl(streamUrl)) {
+                ProxyMetrics.OPEN_FAILURES.increment();
+                throw e;
+            }
+            log.warn("Error open stream session {}, retrying with a fresh url：{}", key, e.getMessage());
+        }
+
+        try {
+            streamUrl = StreamUrlResolver.getInstance().refresh(cameraCode, rendition.getStreamType(), streamUrl);
+        } catch (Exception e) {
+            ProxyMetrics.OPEN_FAILURES.increment();
+            throw new IOException("Can't refresh stream url of " + key, e);
+        }
+        try {
+            return start();
+        } catch (FrameGrabber.Exception e) {
+            ProxyMetrics.OPEN_FAILURES.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Start a grabber on the stream url. Probing the stream takes most of the open time, so when the camera's
+     * parameters are known from a previous open it is probed briefly. If the short probe missed something the
+     * cached parameters are dropped and the camera is opened again with the full probe. Parameters that changed
+     * (the camera was reconfigured) replace the cached ones.
+     */
+    private FFmpegFrameGrabber start() throws FrameGrabber.Exception {
+        StreamParams cached = hub.getStreamParams(key);
+        FFmpegFrameGrabber grabber = cached != null
+                ? LiveGrabber.of(streamUrl, PROXY_PROPERTIES.getOpenTimeout(),
+                PROXY_PROPERTIES.getFastProbeSize(), PROXY_PROPERTIES.getFastAnalyzeDuration())
+                : LiveGrabber.of(streamUrl, PROXY_PROPERTIES.getOpenTimeout(),
+                PROXY_PROPERTIES.getProbeSize(), PROXY_PROPERTIES.getAnalyzeDuration());
+        long start = System.nanoTime();
+        try {
+            grabber.start();
+        } catch (FrameGrabber.Exception e) {
+            release(grabber);
+            throw e;
+        }
+
+        StreamParams params = StreamParams.of(grabber);
+        if (cached != null && !params.isCompleteFor(cached)) {
+            log.info("Stream session {} short probe found {}, expected {}, probing again", key, params, cached);
+            hub.invalidateStreamParams(key);
+            release(grabber);
+            return start();
+        }
+        if (params.isComplete() && !params.equals(cached)) {
+            if (cached != null) {
+                log.info("Stream session {} parameters changed from {} to {}", key, cached, params);
+            }
+            hub.putStreamParams(key, params);
+        }
+        ProxyMetrics.OPEN_LATENCY.observeSince(start);
+        return grabber;
+    }
+
+    private static void release(FFmpegFrameGrabber grabber) {
+        try {
+            grabber.stop();
+        } catch (FrameGrabber.Exception e) {
+            log.error("Error stop grabber：", e);
+        }
+    }
+
+    /**
+     * Copy the compressed packets into FLV
+     */
+    private void remux(FFmpegFrameGrabber grabber, OutputStream outputStream, boolean resumed) throws IOException {
+        try (FFmpegFrameRecorder recorder = new LiveRemuxer(outputStream, grabber)) {
+            recorder.start(grabber.getFormatContext());
+            onOpened();
+
+            boolean awaitKeyFrame = resumed; // The viewers can't decode the inter frames before it
+            AVPacket packet;
+            while (!closed && (packet = grabber.grabPacket()) != null) {
+                onGrabbed();
+                if (awaitKeyFrame && packet.stream_index() == grabber.getVideoStream()) {
+                    awaitKeyFrame = (packet.flags() & avcodec.AV_PKT_FLAG_KEY) == 0;
+                }
+                if (awaitKeyFrame) {
+                    avcodec.av_packet_unref(packet);
+                    continue;
+                }
+                long start = System.nanoTime();
+                recorder.recordPacket(packet);
+                onEncoded(start);
+                // Packets of streams the recorder doesn't know (e.g. camera private data) are not consumed
+                avcodec.av_packet_unref(packet);
+            }
+        }
+    }
+
+    /**
+     * Decode and encode the frames to H.264/AAC FLV, scaled to the rendition. The session thread decodes and the
+     * encoder runs on another thread. Other renditions of the camera stream that transcode too encode the same
+     * decoded frames meanwhile.
+     *
+     * @param remuxable whether the source could be copied to a rendition it fits
+     */
+    private void transcode(FFmpegFrameGrabber grabber, OutputStream outputStream, boolean resumed, boolean remuxable)
+            throws IOException {
+        DecodeStage decoder = new DecodeStage(key, cameraCode, rendition.getStreamType(), grabber.getImageWidth(),
+                grabber.getImageHeight(), grabber.getAudioChannels(), remuxable);
+        try (FFmpegFrameRecorder recorder = newRecorder(outputStream, decoder)) {
+            recorder.start();
+            onOpened();
+
+            EncoderStage encoder = new EncoderStage(key, decoder, recorder, () -> closed, this::onEncoded);
+            decoder.attach(encoder);
+            if (!hub.getScheduler().tryStartEncoder(encoder)) {
+                decoder.close(); // Not awaited, the encoder never ran
+                throw new IOException("No encoder thread left for " + key);
+            }
+            if (!ProxyCluster.getInstance().isRelayUrl(streamUrl)) {
+                hub.putDecoder(decoder); // A relay's source is the owner's rendition, not the camera stream
+            }
+            try {
+                boolean awaitKeyFrame = resumed; // The decoder's frames before it may be garbled
+                Frame frame;
+                while (!closed && !encoder.isFailed() && (frame = grabber.grab()) != null) {
+                    onGrabbed();
+                    if (awaitKeyFrame && frame.image != null) {
+                        awaitKeyFrame = !frame.keyFrame;
+                    }
+                    if (!awaitKeyFrame) {
+                        decoder.publish(frame);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted decoding " + key, e);
+            } finally {
+                hub.removeDecoder(decoder);
+                decoder.close();
+                encoder.await(); // The encoder thread is done with the recorder
+            }
+        }
+    }
+
+    /**
+     * Encode the frames another session decodes from the same camera stream, when this rendition can't copy it
+     * either, until that session's decoder stops or this session closes
+     *
+     * @return whether the viewers got a stream, to be resumed from a grabber of the session's own
+     */
+    private boolean encodeShared() {
+        DecodeStage decoder = hub.findDecoder(cameraCode, rendition.getStreamType());
+        if (decoder == null || ProxyCluster.getInstance().isRelayUrl(streamUrl)
+                || decoder.isRemuxable() && rendition.fits(decoder.getWidth())
+                || !acquireTranscode()) {
+            return false;
+        }
+
+        try (FlvTagOutputStream outputStream = new FlvTagOutputStream(allocator, this::onTag);
+             FFmpegFrameRecorder recorder = newRecorder(outputStream, decoder)) {
+            EncoderStage encoder = new EncoderStage(key, decoder, recorder, () -> closed, this::onEncoded);
+            if (!decoder.attach(encoder)) {
+                return false;
+            }
+            try {
+                recorder.start();
+            } catch (IOException e) {
+                decoder.detach(encoder);
+                throw e;
+            }
+            onOpened();
+            ProxyMetrics.SHARED_DECODES.increment();
+            log.info("Stream session {} transcoding the frames decoded by {}", key, decoder.getKey());
+            encoder.run();
+            encoder.await();
+            if (!closed) {
+                log.info("Stream session {} shared decoder stopped, opening the camera", key);
+            }
+        } catch (IOException e) {
+            log.warn("Stream session {} shared decoder lost：{}", key, e.getMessage());
+        }
+        return opened;
+    }
+
+    /**
+     * Take a transcode slot unless the session holds one, it keeps it across reconnects while it transcodes
+     *
+     * @return false if none is left
+     */
+    private boolean acquireTranscode() {
+        return transcoding || (transcoding = hub.getScheduler().tryAcquireTranscode());
+    }
+
+    private void releaseTranscode() {
+        if (transcoding) {
+            transcoding = false;
+            hub.getScheduler().releaseTranscode();
+        }
+    }
+
+    private FFmpegFrameRecorder newRecorder(OutputStream outputStream, DecodeStage decoder) {
+        return new LiveRecorder(
+                outputStream,
+                rendition.width(decoder.getWidth()),
+                rendition.height(decoder.getWidth(), decoder.getHeight()),
+                decoder.getAudioChannels(),
+                hub.getScheduler().getEncoderThreads(),
+                rendition.getFrameRate(),
+                rendition.getVideoBitrate());
+    }
+
+    private void onGrabbed() {
+        framesGrabbed.increment();
+        ProxyMetrics.FRAMES_GRABBED.increment();
+    }
+
+    private void onEncoded(long startNanos) {
+        framesEncoded.increment();
+        ProxyMetrics.FRAMES_ENCODED.increment();
+        ProxyMetrics.ENCODE_TIME.observeSince(startNanos);
+    }
+
+    private void onTag(FlvTag tag) {
+        if (recording != null) {
+            recording.onTag(tag); // Outside the lock, viewers joining don't wait for the disk
+        }
+        offer(tag);
+    }
+
+    private synchronized void offer(FlvTag tag) {
+        if (closed) {
+            tag.release();
+            return;
+        }
+        gopCache.add(tag);
+        if (!tag.isInitTag()) {
+            lastTimestamp = Math.max(lastTimestamp, tag.timestamp());
+        }
+        if (hlsPackager != null) {
+            hlsPackager.onTag(tag);
+        }
+
+        for (StreamSubscriber subscriber : subscribers) {
+            if (subscriber.isStarted()) {
+                subscriber.offer(tag);
+            }
+        }
+        tag.release();
+    }
+
+    private void close() {
+        List<StreamSubscriber> finished;
+        synchronized (this) {
+            closed = true;
+            finished = new ArrayList<>(subscribers);
+            subscribers.clear();
+            gopCache.clear();
+            if (idleFuture != null) {
+                idleFuture.cancel(false);
+            }
+            if (hlsPackager != null) {
+                hlsPackager.close();
+            }
+        }
+        hub.remove(this);
+        releaseTranscode();
+        if (recording != null) {
+            recording.close();
+        }
+        for (StreamSubscriber subscriber : finished) {
+            if (subscriber.isStarted()) {
+                subscriber.finish();
+            } else if (overBudget) {
+                subscriber.fail(HttpResponseStatus.SERVICE_UNAVAILABLE);
+            } else {
+                // The camera couldn't be opened
+                subscriber.fail(HttpResponseStatus.BAD_GATEWAY);
+            }
+        }
+        log.info("Stream session {} closed", key);
+    }
+
+    private static String codecName(int codecId) {
+        return avcodec.avcodec_get_name(codecId).getString();
+    }
+}
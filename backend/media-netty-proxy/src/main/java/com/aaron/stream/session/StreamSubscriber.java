@@ -0,0 +1,263 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.flv.FlvTag;
+import com.aaron.stream.metrics.ProxyMetrics;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A viewer of a stream session.
+ * <p>
+ * A viewer is pending until the session has opened the camera, only then the response head (or the WebSocket
+ * handshake) is written. If that
+ * takes too long, or the camera can't be opened, the viewer gets an error response instead.
+ * <p>
+ * The session thread only queues tags here, they are written on the channel's event loop, every tag queued since
+ * the last run goes out as one HTTP chunk (or WebSocket message) followed by a single flush.
+ * <p>
+ * A viewer that can't keep up never blocks the session: once its outbound buffer passes the channel's high water
+ * mark every tag is dropped until the buffer is drained and the next key frame arrives, so the player resumes on a
+ * decodable frame. If it is still behind after {@code maxLagMillis} the viewer is disconnected.
+ * <p>
+ * The cached GOP replayed to a new viewer is queued whatever its size, and the viewer may be that far behind on top
+ * of the high water mark until it's written, so the live tags following it aren't dropped either.
+ */
+@Slf4j
+class StreamSubscriber {
+    private static final int RETRY_AFTER_SECONDS = 5; // Of a 503
+    private static final int MAX_BATCH_TAGS = 64;
+
+    private final Channel channel;
+    private final FlvTransport transport;
+    private final long maxLagNanos;
+    private final Queue<FlvTag> pending = PlatformDependent.newMpscQueue();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
+    private final LongAdder droppedTags;
+    private volatile boolean finished;
+    private ScheduledFuture<?> startTimeout;
+    private boolean firstWritten; // Only accessed on the event loop
+    private volatile boolean dropping; // Written by the session thread
+
+    // Only accessed by the session thread
+    private long droppingSince;
+    private long replayBytes; // Replayed GOP not written yet, allowed on top of the high water mark
+
+    /**
+     * @param channel      viewer channel
+     * @param transport    framing of the stream on the channel
+     * @param maxLagMillis time a slow viewer may keep dropping frames
+     * @param droppedTags  tags dropped for being too slow, counted for the session
+     */
+    StreamSubscriber(Channel channel, FlvTransport transport, long maxLagMillis, LongAdder droppedTags) {
+        this.channel = channel;
+        this.transport = transport;
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        this.droppedTags = droppedTags;
+    }
+
+    Channel channel() {
+        return channel;
+    }
+
+    /**
+     * Answer 504 if the session hasn't started this viewer in time
+     *
+     * @param timeoutMillis open timeout
+     */
+    void awaitStart(long timeoutMillis) {
+        startTimeout = channel.eventLoop().schedule(
+                () -> fail(HttpResponseStatus.GATEWAY_TIMEOUT), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the response head, must be called before any tag is queued
+     *
+     * @return false if the viewer already got an error response
+     */
+    boolean start() {
+        if (!state.compareAndSet(State.PENDING, State.STARTED)) {
+            return false;
+        }
+        if (startTimeout != null) {
+            startTimeout.cancel(false);
+        }
+        transport.start(channel);
+        return true;
+    }
+
+    boolean isStarted() {
+        return state.get() == State.STARTED;
+    }
+
+    /**
+     * Whether the viewer is too slow, its frames are dropped until the next key frame
+     */
+    boolean isDropping() {
+        return dropping;
+    }
+
+    /**
+     * Answer a pending viewer with an error and close it
+     *
+     * @param status error status
+     */
+    void fail(HttpResponseStatus status) {
+        if (state.compareAndSet(State.PENDING, State.FAILED)) {
+            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+            if (status.equals(HttpResponseStatus.SERVICE_UNAVAILABLE)) {
+                response.headers().set(HttpHeaderNames.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            }
+            channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Bytes queued for the viewer, by the session and in the channel's outbound buffer
+     */
+    long getPendingBytes() {
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return pendingBytes.get() + (outboundBuffer != null ? outboundBuffer.totalPendingWriteBytes() : 0);
+    }
+
+    /**
+     * Queue a tag for this viewer, or drop it if the viewer is too slow
+     *
+     * @param tag tag, retained by the subscriber until written
+     */
+    void offer(FlvTag tag) {
+        if (!channel.isActive()) {
+            return;
+        }
+        if (!tag.isInitTag() && !admit(tag)) {
+            droppedTags.increment();
+            ProxyMetrics.TAGS_DROPPED.increment();
+            return;
+        }
+        queue(tag);
+    }
+
+    /**
+     * Queue a tag of the cached GOP replayed to the new viewer, it's never dropped
+     *
+     * @param tag tag, retained by the subscriber until written
+     */
+    void offerReplay(FlvTag tag) {
+        if (!channel.isActive()) {
+            return;
+        }
+        if (!tag.isInitTag()) {
+            replayBytes += tag.content().readableBytes();
+        }
+        queue(tag);
+    }
+
+    private void queue(FlvTag tag) {
+        pendingBytes.addAndGet(tag.content().readableBytes());
+        pending.offer(tag.retain());
+        scheduleDrain();
+    }
+
+    private boolean admit(FlvTag tag) {
+        long highWaterMark = channel.config().getWriteBufferHighWaterMark();
+        long backlog = getPendingBytes();
+        if (replayBytes > 0 && backlog <= highWaterMark) {
+            replayBytes = 0; // The replay is written
+        }
+        // The channel is unwritable while the replay is in its outbound buffer
+        boolean congested = backlog > highWaterMark + replayBytes || replayBytes == 0 && !channel.isWritable();
+        if (!dropping) {
+            if (!congested) {
+                return true;
+            }
+            dropping = true;
+            droppingSince = System.nanoTime();
+            log.debug("Viewer {} is too slow, dropping frames until the next key frame", channel.remoteAddress());
+            return false;
+        }
+
+        if (!congested && tag.isKeyFrame()) {
+            dropping = false;
+            return true;
+        }
+        if (System.nanoTime() - droppingSince > maxLagNanos) {
+            log.warn("Viewer {} lagging for more than {} ms, disconnecting",
+                    channel.remoteAddress(), TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+            channel.close();
+        }
+        return false;
+    }
+
+    /**
+     * End the response and close the channel once the queued tags are written
+     */
+    void finish() {
+        finished = true;
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+
+        long now = System.nanoTime();
+        if (!firstWritten && !pending.isEmpty()) {
+            firstWritten = true;
+            Long requestStart = channel.attr(ProxyMetrics.REQUEST_START).get();
+            if (requestStart != null) {
+                ProxyMetrics.TIME_TO_FIRST_BYTE.observeNanos(now - requestStart);
+            }
+        }
+
+        CompositeByteBuf batch = null;
+        FlvTag tag;
+        while ((tag = pending.poll()) != null) {
+            ProxyMetrics.WRITE_LATENCY.observeNanos(now - tag.createdNanos());
+            if (batch == null) {
+                batch = channel.alloc().compositeDirectBuffer(MAX_BATCH_TAGS);
+            }
+            batch.addComponent(true, tag.content().retainedDuplicate());
+            pendingBytes.addAndGet(-tag.content().readableBytes());
+            tag.release();
+            if (batch.numComponents() == MAX_BATCH_TAGS) {
+                channel.write(transport.wrap(batch));
+                batch = null;
+            }
+        }
+        if (batch != null) {
+            channel.write(transport.wrap(batch));
+        }
+
+        if (finished) {
+            transport.finish(channel);
+        } else {
+            channel.flush();
+        }
+    }
+
+    private enum State {
+        PENDING, STARTED, FAILED
+    }
+}
@@ -0,0 +1,53 @@
+package com.aaron.stream.session;
+
+import com.aaron.stream.handler.WebSocketFrameHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+
+/**
+ * WebSocket-FLV, as played by flv.js. The handshake is only answered once the session has opened the camera, so
+ * the viewer can still get an HTTP error status before that. FLV bytes are sent as binary messages.
+ */
+public class WebSocketFlvTransport implements FlvTransport {
+    private final WebSocketServerHandshaker handshaker;
+    private final FullHttpRequest request;
+
+    /**
+     * @param handshaker handshaker of the upgrade request
+     * @param request    upgrade request, only its headers are kept
+     */
+    public WebSocketFlvTransport(WebSocketServerHandshaker handshaker, FullHttpRequest request) {
+        this.handshaker = handshaker;
+        this.request = new DefaultFullHttpRequest(request.protocolVersion(), request.method(), request.uri(),
+                Unpooled.EMPTY_BUFFER, request.headers().copy(), EmptyHttpHeaders.INSTANCE);
+    }
+
+    @Override
+    public void start(Channel channel) {
+        handshaker.handshake(channel, request).addListener(future -> {
+            if (future.isSuccess()) {
+                channel.pipeline().addLast(new WebSocketFrameHandler(handshaker));
+            } else {
+                channel.close();
+            }
+        });
+    }
+
+    @Override
+    public Object wrap(ByteBuf content) {
+        return new BinaryWebSocketFrame(content);
+    }
+
+    @Override
+    public void finish(Channel channel) {
+        handshaker.close(channel, new CloseWebSocketFrame(WebSocketCloseStatus.NORMAL_CLOSURE));
+    }
+}
@@ -0,0 +1,103 @@
+package com.aaron.stream.snapshot;
+
+import com.aaron.stream.session.LiveGrabber;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Decodes one key frame to a JPEG picture, scaled by FFmpeg while converting it from YUV
+ */
+final class SnapshotDecoder {
+    private static final String FLV_FORMAT = "flv";
+    private static final float JPEG_QUALITY = 0.8f;
+    private static final int MAX_GRAB_FRAMES = 300; // Longer than the GOP of any camera
+
+    private SnapshotDecoder() {
+    }
+
+    /**
+     * Decode the key frame of an FLV file
+     *
+     * @param file   FLV file with the video sequence header and a key frame
+     * @param width  picture width, 0 to keep the aspect ratio or the frame's width
+     * @param height picture height, 0 to keep the aspect ratio or the frame's height
+     * @return JPEG bytes
+     */
+    static byte[] decode(byte[] file, int width, int height) throws IOException {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(new ByteArrayInputStream(file), 0)) {
+            grabber.setFormat(FLV_FORMAT);
+            grabber.start();
+            return grabKeyFrame(grabber, width, height);
+        }
+    }
+
+    /**
+     * Open a camera and decode its first key frame
+     *
+     * @param streamUrl     stream url
+     * @param timeoutMillis socket timeout
+     * @param width         picture width, 0 to keep the aspect ratio or the frame's width
+     * @param height        picture height, 0 to keep the aspect ratio or the frame's height
+     * @return JPEG bytes
+     */
+    static byte[] grab(String streamUrl, long timeoutMillis, int width, int height) throws IOException {
+        try (FFmpegFrameGrabber grabber = LiveGrabber.of(streamUrl, timeoutMillis, 0, 0)) {
+            grabber.start();
+            return grabKeyFrame(grabber, width, height);
+        }
+    }
+
+    private static byte[] grabKeyFrame(FFmpegFrameGrabber grabber, int width, int height) throws IOException {
+        int sourceWidth = grabber.getImageWidth();
+        int sourceHeight = grabber.getImageHeight();
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IOException("No video");
+        }
+        if (width <= 0 && height <= 0) {
+            width = sourceWidth;
+            height = sourceHeight;
+        } else if (width <= 0) {
+            width = Math.max(1, (int) ((long) height * sourceWidth / sourceHeight));
+        } else if (height <= 0) {
+            height = Math.max(1, (int) ((long) width * sourceHeight / sourceWidth));
+        }
+        // Applied by the conversion of the next frame grabbed
+        grabber.setImageWidth(width);
+        grabber.setImageHeight(height);
+
+        Frame frame;
+        for (int i = 0; i < MAX_GRAB_FRAMES && (frame = grabber.grabImage()) != null; i++) {
+            if (frame.keyFrame) {
+                return encode(frame);
+            }
+        }
+        throw new IOException("No key frame");
+    }
+
+    private static byte[] encode(Frame frame) throws IOException {
+        BufferedImage image = new Java2DFrameConverter().convert(frame);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
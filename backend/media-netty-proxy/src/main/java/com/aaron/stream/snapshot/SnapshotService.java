@@ -0,0 +1,166 @@
+package com.aaron.stream.snapshot;
+
+import com.aaron.stream.config.ProxyProperties;
+import com.aaron.stream.metrics.ProxyMetrics;
+import com.aaron.stream.session.Rendition;
+import com.aaron.stream.session.StreamHub;
+import com.aaron.stream.utils.ProxyInit;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JPEG snapshots of cameras, for thumbnails.
+ * <p>
+ * A camera with a running session is snapshotted from the session's cached key frame, a single picture decode.
+ * Otherwise the camera is opened just long enough to decode its first key frame. Snapshots are cached for a short
+ * time, concurrent requests for the same picture wait for one decode, and decodes run on a few workers with a
+ * bounded queue so a wall of thumbnails can't starve the sessions.
+ */
+@Slf4j
+public class SnapshotService {
+    private final static ProxyProperties PROXY_PROPERTIES = ProxyInit.getProxyProperties();
+    private final static StreamHub STREAM_HUB = StreamHub.getInstance();
+    private static final int MAX_PENDING_PER_WORKER = 32;
+    private static final int PURGE_SIZE = 1024; // Entries above which the expired ones are dropped
+    private final static SnapshotService INSTANCE = new SnapshotService(
+            PROXY_PROPERTIES.getSnapshotTtl(), PROXY_PROPERTIES.getSnapshotWorkers());
+
+    private final long ttlNanos;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis milliseconds a snapshot is cached
+     * @param workers   concurrent decodes
+     */
+    SnapshotService(long ttlMillis, int workers) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * MAX_PENDING_PER_WORKER), new DefaultThreadFactory("snapshot", true));
+    }
+
+    public static SnapshotService getInstance() {
+        return INSTANCE;
+    }
+
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    /**
+     * Snapshot from the cache or from the camera's running session, no stream url is needed then
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @param width      picture width, 0 to keep the aspect ratio or the frame's width
+     * @param height     picture height, 0 to keep the aspect ratio or the frame's height
+     * @return future JPEG bytes, null if the camera has to be opened with {@link #grab}
+     */
+    public CompletableFuture<byte[]> find(String cameraCode, Rendition rendition, int width, int height) {
+        String key = key(cameraCode, rendition, width, height);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isFresh(System.nanoTime())) {
+            ProxyMetrics.SNAPSHOT_CACHE_HITS.increment();
+            return entry.future.copy();
+        }
+        byte[] keyFrame = STREAM_HUB.keyFrameFile(cameraCode, rendition);
+        if (keyFrame == null) {
+            return null;
+        }
+        return compute(key, () -> {
+            ProxyMetrics.SNAPSHOT_DECODES.increment();
+            return SnapshotDecoder.decode(keyFrame, width, height);
+        });
+    }
+
+    /**
+     * Snapshot from the cache, or by opening the camera
+     *
+     * @param cameraCode camera index code
+     * @param rendition  requested rendition
+     * @param streamUrl  stream url of the rendition
+     * @param width      picture width, 0 to keep the aspect ratio or the frame's width
+     * @param height     picture height, 0 to keep the aspect ratio or the frame's height
+     * @return future JPEG bytes, failed with a {@link RejectedExecutionException} if the workers are saturated or
+     * the camera is at its pull limit
+     */
+    public CompletableFuture<byte[]> grab(String cameraCode, Rendition rendition, String streamUrl, int width, int height) {
+        return compute(key(cameraCode, rendition, width, height), () -> {
+            if (!STREAM_HUB.tryAcquirePull(cameraCode)) {
+                throw new RejectedExecutionException("Camera " + cameraCode + " at its pull limit");
+            }
+            try {
+                ProxyMetrics.SNAPSHOT_GRABS.increment();
+                return SnapshotDecoder.grab(streamUrl, PROXY_PROPERTIES.getOpenTimeout(), width, height);
+            } finally {
+                STREAM_HUB.releasePull(cameraCode);
+            }
+        });
+    }
+
+    /**
+     * Cached or pending snapshot, else a new decode on the workers. Every caller gets a copy of the shared future,
+     * so a caller's timeout doesn't complete it for the others, nor cache the timeout for the TTL.
+     */
+    private CompletableFuture<byte[]> compute(String key, Callable<byte[]> decode) {
+        long now = System.nanoTime();
+        Entry created = new Entry();
+        Entry entry = entries.compute(key, (k, existing) -> existing != null && existing.isFresh(now) ? existing : created);
+        if (entry != created) {
+            ProxyMetrics.SNAPSHOT_CACHE_HITS.increment();
+            return entry.future.copy();
+        }
+        if (entries.size() > PURGE_SIZE) {
+            entries.values().removeIf(e -> !e.isFresh(now));
+        }
+
+        try {
+            workers.execute(() -> {
+                try {
+                    byte[] jpeg = decode.call();
+                    entry.expiresNanos = System.nanoTime() + ttlNanos;
+                    entry.future.complete(jpeg);
+                } catch (Exception e) {
+                    log.warn("Error snapshot {}：{}", key, e.getMessage());
+                    fail(key, entry, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(key, entry, e);
+        }
+        return entry.future.copy();
+    }
+
+    /**
+     * A failure isn't cached, the next request tries again
+     */
+    private void fail(String key, Entry entry, Exception cause) {
+        entries.remove(key, entry);
+        entry.future.completeExceptionally(cause);
+    }
+
+    private static String key(String cameraCode, Rendition rendition, int width, int height) {
+        return rendition.sessionKey(cameraCode) + "/" + width + "x" + height;
+    }
+
+    private static final class Entry {
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        volatile long expiresNanos; // Set once decoded
+
+        /**
+         * Pending, or decoded within the TTL
+         */
+        boolean isFresh(long nowNanos) {
+            return !future.isDone() || nowNanos - expiresNanos < 0;
+        }
+    }
+}
@@ -35,9 +35,14 @@ public class HikRest {
         ARTEMIS_CONFIG = new ArtemisConfig(HIK_HOST, PROXY_PROPERTIES.getAppKey(), PROXY_PROPERTIES.getAppSecret());
     }
 
-    public static String getRtspUrl(String cameraIndexCode) throws Exception {
+    /**
+     * @param cameraIndexCode camera index code
+     * @param streamType      0 main stream, 1 sub-stream
+     * @return rtsp url
+     */
+    public static String getRtspUrl(String cameraIndexCode, int streamType) throws Exception {
         Map<String, String> path = buildPath(HIK_RTSP_URL);
-        String body = buildBody(cameraIndexCode);
+        String body = buildBody(cameraIndexCode, streamType);
         // Read response body
         String responseBody = ArtemisHttpUtil.doPostStringArtemis(ARTEMIS_CONFIG, path, body, null, null, "application/json");
         log.info("【HikVision API】Get cameras stream on rtsp, result: {}", responseBody);
@@ -62,9 +67,10 @@ public class HikRest {
         };
     }
 
-    private static String buildBody(String cameraIndexCode) throws JsonProcessingException {
-        Map<String, String> body = new HashMap<>();
+    private static String buildBody(String cameraIndexCode, int streamType) throws JsonProcessingException {
+        Map<String, Object> body = new HashMap<>();
         body.put("cameraIndexCode", cameraIndexCode);
+        body.put("streamType", streamType);
         body.put("protocol", "rtsp");
         return OBJECT_MAPPER.writeValueAsString(body);
     }
@@ -0,0 +1,58 @@
+package com.aaron.stream.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded number of permits per key (e.g. connections per camera), a key is only kept while it holds permits
+ */
+public class KeyedPermits {
+    private final int maxPermits;
+    private final Map<String, Integer> permits = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxPermits permits per key, 0 or less for no limit
+     */
+    public KeyedPermits(int maxPermits) {
+        this.maxPermits = maxPermits;
+    }
+
+    /**
+     * Take a permit of the key if one is left, it must be given back with {@link #release}
+     *
+     * @param key key
+     * @return false if the key is at its limit
+     */
+    public boolean tryAcquire(String key) {
+        boolean[] acquired = new boolean[1];
+        permits.compute(key, (k, held) -> {
+            int count = held == null ? 0 : held;
+            acquired[0] = maxPermits <= 0 || count < maxPermits;
+            return acquired[0] ? count + 1 : held;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * Give a permit back
+     *
+     * @param key key
+     */
+    public void release(String key) {
+        permits.computeIfPresent(key, (k, held) -> held > 1 ? held - 1 : null);
+    }
+
+    /**
+     * Whether a permit of the key is left, it may be gone by the time it's acquired
+     *
+     * @param key key
+     * @return true or false
+     */
+    public boolean isAvailable(String key) {
+        return maxPermits <= 0 || permits.getOrDefault(key, 0) < maxPermits;
+    }
+
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+}
@@ -6,6 +6,32 @@ import com.aaron.stream.consts.ProxyConst;
 import java.util.Map;
 
 public class ProxyInit {
+    private final static int DEFAULT_SESSION_IDLE_GRACE = 10;
+    private final static int DEFAULT_MAX_SESSIONS = 30;
+    private final static int DEFAULT_WRITE_BUFFER_LOW = 512 * 1024;
+    private final static int DEFAULT_WRITE_BUFFER_HIGH = 4 * 1024 * 1024;
+    private final static int DEFAULT_MAX_LAG = 10000;
+    private final static int DEFAULT_URL_CACHE_TTL = 60;
+    private final static int DEFAULT_OPEN_TIMEOUT = 10000;
+    private final static int DEFAULT_BOSS_THREADS = 1;
+    private final static int DEFAULT_GOP_CACHE_SIZE = 4 * 1024 * 1024;
+    private final static int DEFAULT_GOP_CACHE_TOTAL_SIZE = 256 * 1024 * 1024;
+    private final static int DEFAULT_RECONNECT_WINDOW = 30000;
+    private final static int DEFAULT_RECONNECT_BACKOFF = 500;
+    private final static int DEFAULT_RECONNECT_MAX_BACKOFF = 8000;
+    private final static int DEFAULT_PROBE_SIZE = 1024 * 1024;
+    private final static int DEFAULT_ANALYZE_DURATION = 1000;
+    private final static int DEFAULT_FAST_PROBE_SIZE = 32 * 1024;
+    private final static int DEFAULT_FAST_ANALYZE_DURATION = 100;
+    private final static int DEFAULT_HLS_PART_DURATION = 500;
+    private final static int DEFAULT_HLS_SEGMENT_DURATION = 2000;
+    private final static int DEFAULT_HLS_CACHE_SIZE = 256 * 1024 * 1024;
+    private final static int DEFAULT_RECORD_SEGMENT_DURATION = 10000;
+    private final static int DEFAULT_RECORD_RETENTION = 600;
+    private final static long DEFAULT_RECORD_QUOTA = 10L * 1024 * 1024 * 1024;
+    private final static int DEFAULT_SNAPSHOT_TTL = 5000;
+    private final static int DEFAULT_SNAPSHOT_WORKERS = 2;
+
     private static ProxyProperties PROXY_PROPERTIES = null;
 
     public static ProxyProperties getProxyProperties() {
@@ -18,8 +44,62 @@ public class ProxyInit {
             PROXY_PROPERTIES.setUsername(sysMap.get(ProxyConst.USERNAME));
             PROXY_PROPERTIES.setPassword(sysMap.get(ProxyConst.PASSWORD));
             PROXY_PROPERTIES.setTest(Boolean.parseBoolean(sysMap.get(ProxyConst.TEST)));
+            PROXY_PROPERTIES.setSessionIdleGrace(parseInt(sysMap.get(ProxyConst.SESSION_IDLE_GRACE), DEFAULT_SESSION_IDLE_GRACE));
+            PROXY_PROPERTIES.setPassthrough(parseBoolean(sysMap.get(ProxyConst.PASSTHROUGH), true));
+            PROXY_PROPERTIES.setMaxSessions(parseInt(sysMap.get(ProxyConst.MAX_SESSIONS), DEFAULT_MAX_SESSIONS));
+            PROXY_PROPERTIES.setEncoderThreads(parseInt(sysMap.get(ProxyConst.ENCODER_THREADS), 0));
+            PROXY_PROPERTIES.setWriteBufferLow(parseInt(sysMap.get(ProxyConst.WRITE_BUFFER_LOW), DEFAULT_WRITE_BUFFER_LOW));
+            PROXY_PROPERTIES.setWriteBufferHigh(parseInt(sysMap.get(ProxyConst.WRITE_BUFFER_HIGH), DEFAULT_WRITE_BUFFER_HIGH));
+            PROXY_PROPERTIES.setMaxLag(parseInt(sysMap.get(ProxyConst.MAX_LAG), DEFAULT_MAX_LAG));
+            PROXY_PROPERTIES.setUrlCacheTtl(parseInt(sysMap.get(ProxyConst.URL_CACHE_TTL), DEFAULT_URL_CACHE_TTL));
+            PROXY_PROPERTIES.setOpenTimeout(parseInt(sysMap.get(ProxyConst.OPEN_TIMEOUT), DEFAULT_OPEN_TIMEOUT));
+            PROXY_PROPERTIES.setNativeTransport(parseBoolean(sysMap.get(ProxyConst.NATIVE_TRANSPORT), true));
+            PROXY_PROPERTIES.setBossThreads(parseInt(sysMap.get(ProxyConst.BOSS_THREADS), DEFAULT_BOSS_THREADS));
+            PROXY_PROPERTIES.setWorkerThreads(parseInt(sysMap.get(ProxyConst.WORKER_THREADS), 0));
+            PROXY_PROPERTIES.setSendBufferSize(parseInt(sysMap.get(ProxyConst.SEND_BUFFER_SIZE), 0));
+            PROXY_PROPERTIES.setGopCacheMaxBytes(parseInt(sysMap.get(ProxyConst.GOP_CACHE_SIZE), DEFAULT_GOP_CACHE_SIZE));
+            PROXY_PROPERTIES.setGopCacheTotalBytes(parseInt(sysMap.get(ProxyConst.GOP_CACHE_TOTAL_SIZE), DEFAULT_GOP_CACHE_TOTAL_SIZE));
+            // A new viewer gets the cached GOP at once, its outbound buffer must hold it
+            PROXY_PROPERTIES.setWriteBufferHigh((int) Math.max(PROXY_PROPERTIES.getWriteBufferHigh(), PROXY_PROPERTIES.getGopCacheMaxBytes()));
+            PROXY_PROPERTIES.setReconnectWindow(parseInt(sysMap.get(ProxyConst.RECONNECT_WINDOW), DEFAULT_RECONNECT_WINDOW));
+            PROXY_PROPERTIES.setReconnectBackoff(parseInt(sysMap.get(ProxyConst.RECONNECT_BACKOFF), DEFAULT_RECONNECT_BACKOFF));
+            PROXY_PROPERTIES.setReconnectMaxBackoff(parseInt(sysMap.get(ProxyConst.RECONNECT_MAX_BACKOFF), DEFAULT_RECONNECT_MAX_BACKOFF));
+            PROXY_PROPERTIES.setProbeSize(parseInt(sysMap.get(ProxyConst.PROBE_SIZE), DEFAULT_PROBE_SIZE));
+            PROXY_PROPERTIES.setAnalyzeDuration(parseInt(sysMap.get(ProxyConst.ANALYZE_DURATION), DEFAULT_ANALYZE_DURATION));
+            PROXY_PROPERTIES.setFastProbeSize(parseInt(sysMap.get(ProxyConst.FAST_PROBE_SIZE), DEFAULT_FAST_PROBE_SIZE));
+            PROXY_PROPERTIES.setFastAnalyzeDuration(parseInt(sysMap.get(ProxyConst.FAST_ANALYZE_DURATION), DEFAULT_FAST_ANALYZE_DURATION));
+            PROXY_PROPERTIES.setHlsPartDuration(parseInt(sysMap.get(ProxyConst.HLS_PART_DURATION), DEFAULT_HLS_PART_DURATION));
+            PROXY_PROPERTIES.setHlsSegmentDuration(parseInt(sysMap.get(ProxyConst.HLS_SEGMENT_DURATION), DEFAULT_HLS_SEGMENT_DURATION));
+            PROXY_PROPERTIES.setHlsCacheMaxBytes(parseInt(sysMap.get(ProxyConst.HLS_CACHE_SIZE), DEFAULT_HLS_CACHE_SIZE));
+            PROXY_PROPERTIES.setRecordDir(sysMap.get(ProxyConst.RECORD_DIR));
+            PROXY_PROPERTIES.setRecordSegmentDuration(parseInt(sysMap.get(ProxyConst.RECORD_SEGMENT_DURATION), DEFAULT_RECORD_SEGMENT_DURATION));
+            PROXY_PROPERTIES.setRecordRetention(parseInt(sysMap.get(ProxyConst.RECORD_RETENTION), DEFAULT_RECORD_RETENTION));
+            PROXY_PROPERTIES.setRecordQuota(parseLong(sysMap.get(ProxyConst.RECORD_QUOTA), DEFAULT_RECORD_QUOTA));
+            PROXY_PROPERTIES.setSnapshotTtl(parseInt(sysMap.get(ProxyConst.SNAPSHOT_TTL), DEFAULT_SNAPSHOT_TTL));
+            PROXY_PROPERTIES.setSnapshotWorkers(parseInt(sysMap.get(ProxyConst.SNAPSHOT_WORKERS), DEFAULT_SNAPSHOT_WORKERS));
+            PROXY_PROPERTIES.setMaxTranscodes(parseInt(sysMap.get(ProxyConst.MAX_TRANSCODES), 0));
+            PROXY_PROPERTIES.setMaxCameraPulls(parseInt(sysMap.get(ProxyConst.MAX_CAMERA_PULLS), 0));
+            PROXY_PROPERTIES.setMaxStreamsPerCredential(parseInt(sysMap.get(ProxyConst.MAX_STREAMS_PER_CREDENTIAL), 0));
+            PROXY_PROPERTIES.setClusterNodes(sysMap.get(ProxyConst.CLUSTER_NODES));
+            PROXY_PROPERTIES.setClusterSelf(sysMap.get(ProxyConst.CLUSTER_SELF));
+            PROXY_PROPERTIES.setClusterRedirect(parseBoolean(sysMap.get(ProxyConst.CLUSTER_REDIRECT), false));
+            PROXY_PROPERTIES.setClusterSecret(sysMap.get(ProxyConst.CLUSTER_SECRET));
+            PROXY_PROPERTIES.setResolver(sysMap.get(ProxyConst.RESOLVER));
+            PROXY_PROPERTIES.setResolverSource(sysMap.get(ProxyConst.RESOLVER_SOURCE));
         }
 
         return PROXY_PROPERTIES;
     }
+
+    private static boolean parseBoolean(String value, boolean defaultValue) {
+        return value == null || value.isBlank() ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value == null || value.isBlank() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        return value == null || value.isBlank() ? defaultValue : Long.parseLong(value.trim());
+    }
 }
@@ -1,10 +0,0 @@
-package com.aaron.stream.vo;
-
-import lombok.Data;
-
-@Data
-public class ProxyUrlInfo {
-    public String host;
-    public int port;
-    public String id;
-}